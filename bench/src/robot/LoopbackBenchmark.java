@@ -0,0 +1,353 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// End to end benchmark: full photo downloads and firmware uploads against RobotSimulator on loopback
+// across a matrix of loss, RTT and reorder profiles. Prints CSV, optionally writes CSV and JSON, and
+// exits with 1 when a result is worse than a baseline CSV by more than the threshold.
+//
+// java -Drobot.log=off -cp bench/target/benchmarks.jar robot.LoopbackBenchmark -runs 20 -csv now.csv -baseline before.csv
+public class LoopbackBenchmark {
+
+	private static final String HEADER = "profile,kind,runs,failed,payloadBytes,goodputBytesPerSecond,retransmitRatio,"
+			+ "p50Millis,p99Millis,allocatedBytesPerRun";
+
+	private Map<String, String> profiles = new LinkedHashMap<String, String>(); // Impairment spec by profile name
+	private String[] kinds = {"photo", "firmware"};
+	private int runs = 10; // Measured transfers per profile and kind
+	private int warmup = 3; // Transfers run before measuring
+	private byte[] photo; // Photo the simulator serves
+	private String firmware = "bin/firmware-karel-1.6.0.bin";
+	private String output = System.getProperty("java.io.tmpdir"); // Directory for downloaded photos
+	private int timeout = 10000; // Time in ms the simulator may stay silent before a transfer fails
+	private byte[] firmwareBytes; // Contents of firmware, compared with what the simulator received
+	private List<Result> results = new ArrayList<Result>();
+
+	public static void main(String[] args) throws IOException {
+		LoopbackBenchmark benchmark = new LoopbackBenchmark();
+		String csv = null;
+		String json = null;
+		String baseline = null;
+		double threshold = 0.10;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if(args[i].equals("-runs")) benchmark.runs = Integer.parseInt(args[i + 1]);
+			else if(args[i].equals("-warmup")) benchmark.warmup = Integer.parseInt(args[i + 1]);
+			else if(args[i].equals("-profile")) benchmark.profile(args[i + 1]);
+			else if(args[i].equals("-kind")) benchmark.kinds = args[i + 1].split(",");
+			else if(args[i].equals("-photo")) benchmark.photo = read(args[i + 1]);
+			else if(args[i].equals("-size")) benchmark.photo = RobotSimulator.randomPhoto(Integer.parseInt(args[i + 1]), 1);
+			else if(args[i].equals("-firmware")) benchmark.firmware = args[i + 1];
+			else if(args[i].equals("-out")) benchmark.output = args[i + 1];
+			else if(args[i].equals("-timeout")) benchmark.timeout = Integer.parseInt(args[i + 1]);
+			else if(args[i].equals("-csv")) csv = args[i + 1];
+			else if(args[i].equals("-json")) json = args[i + 1];
+			else if(args[i].equals("-baseline")) baseline = args[i + 1];
+			else if(args[i].equals("-threshold")) threshold = Double.parseDouble(args[i + 1]);
+			else {
+				usage();
+				return;
+			}
+		}
+		if(args.length % 2 != 0) {
+			usage();
+			return;
+		}
+
+		if(benchmark.profiles.isEmpty()) benchmark.defaultProfiles();
+		if(benchmark.photo == null) {
+			benchmark.photo = new File("bin/fotka.png").exists() ? read("bin/fotka.png") : RobotSimulator.randomPhoto(100000, 1);
+		}
+
+		if(Arrays.asList(benchmark.kinds).contains("firmware")) benchmark.firmwareBytes = read(benchmark.firmware);
+
+		System.out.println(HEADER);
+		benchmark.run();
+
+		if(csv != null) benchmark.write(csv, benchmark.csv());
+		if(json != null) benchmark.write(json, benchmark.json());
+		if(baseline != null && !benchmark.compare(baseline, threshold)) System.exit(1);
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java robot.LoopbackBenchmark [-runs 10] [-warmup 3] [-profile <name>=<impairment>] ...");
+		System.out.println("       [-kind photo,firmware] [-photo <file> | -size <bytes>] [-firmware <file>] [-out <directory>] [-timeout 10000]");
+		System.out.println("       [-csv <file>] [-json <file>] [-baseline <csv file>] [-threshold 0.10]");
+	}
+
+	// Profiles run when none are given on the command line
+	private void defaultProfiles() {
+		this.profiles.put("clean", "");
+		this.profiles.put("loss1", "loss=0.01");
+		this.profiles.put("loss5", "loss=0.05");
+		this.profiles.put("rtt50", "delay=25,jitter=2");
+		this.profiles.put("reorder", "reorder=0.05,jitter=3");
+		this.profiles.put("wan", "loss=0.02,delay=20,jitter=10,reorder=0.02");
+	}
+
+	// Add name=impairment profile, the spec may contain further = signs
+	private void profile(String definition) {
+		int split = definition.indexOf('=');
+		if(split <= 0) throw new IllegalArgumentException("Bad profile " + definition);
+
+		this.profiles.put(definition.substring(0, split), definition.substring(split + 1));
+	}
+
+	// Run every profile and kind, one simulator per cell so impairments start from their seed
+	private void run() throws IOException {
+
+		for (Map.Entry<String, String> profile : this.profiles.entrySet()) {
+			for (String kind : this.kinds) {
+				Impairment impairment = Impairment.parse(profile.getValue());
+				RobotSimulator simulator = new RobotSimulator(0, this.photo, impairment, null);
+				Thread thread = new Thread(simulator, "simulator");
+				thread.setDaemon(true);
+				thread.start();
+
+				Result result = new Result(profile.getKey(), kind, this.runs);
+
+				for (int i = 0; i < this.warmup; i++) transfer(simulator, kind, null);
+				for (int i = 0; i < this.runs; i++) transfer(simulator, kind, result);
+
+				simulator.close();
+				this.results.add(result);
+				System.out.println(result.csv());
+			}
+		}
+	}
+
+	// One transfer in blocking mode, as Robot.main runs it. A session that hears nothing for the timeout
+	// fails on its own. Runs that throw or deliver other bytes than were sent fail. Adds to result unless warming up
+	private void transfer(RobotSimulator simulator, String kind, Result result) throws IOException {
+		Connection connection = new Connection("127.0.0.1:" + simulator.port());
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long allocated = allocated(threads); // Bytes allocated by the transfer
+		long start = System.nanoTime();
+		boolean ok;
+
+		if(kind.equals("firmware")) simulator.clearLastFirmware();
+		connection.idleTimeout = this.timeout;
+
+		try {
+			ok = kind.equals("photo") ? download(connection) : upload(simulator, connection);
+			allocated = allocated < 0 ? -1 : allocated(threads) - allocated;
+		}
+		catch(IOException e) {
+			System.err.println(kind + " transfer failed: " + e);
+			ok = false;
+		}
+		finally {
+			connection.discard();
+		}
+
+		long elapsed = System.nanoTime() - start;
+		if(result == null) return;
+
+		int payload = kind.equals("photo") ? this.photo.length : this.firmwareBytes.length;
+		result.add(elapsed, ok ? payload : 0, ok, ok ? allocated : 0, connection.metrics);
+	}
+
+	// Download photo, true if the file holds exactly the photo the simulator serves
+	private boolean download(Connection connection) throws IOException {
+		File file = new File(this.output, "loopback-" + System.nanoTime() + ".png");
+
+		try {
+			connection.init(new byte[] {0x01});
+			new PhotoClient(connection, file.getPath()).run();
+			return Arrays.equals(read(file.getPath()), this.photo);
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	// Upload firmware, true if the simulator received exactly its bytes
+	private boolean upload(RobotSimulator simulator, Connection connection) throws IOException {
+		connection.init(new byte[] {0x02});
+		new FirmwareSender(connection, this.firmware).run();
+
+		// Our FIN is on its way when run returns, the simulator keeps the firmware once it arrives
+		byte[] uploaded;
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.timeout);
+		while((uploaded = simulator.lastFirmware()) == null && System.nanoTime() < end) LockSupport.parkNanos(1000000);
+
+		return Arrays.equals(uploaded, this.firmwareBytes);
+	}
+
+	// Bytes allocated by this thread so far, -1 if the JVM cannot tell
+	private static long allocated(ThreadMXBean threads) {
+
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private String csv() {
+		StringBuilder csv = new StringBuilder(HEADER).append('\n');
+
+		for (Result result : this.results) csv.append(result.csv()).append('\n');
+		return csv.toString();
+	}
+
+	private String json() {
+		StringBuilder json = new StringBuilder("[");
+		String separator = "\n";
+
+		for (Result result : this.results) {
+			json.append(separator).append(result.json());
+			separator = ",\n";
+		}
+		return json.append("\n]\n").toString();
+	}
+
+	private void write(String filename, String contents) throws IOException {
+		FileOutputStream out = new FileOutputStream(filename, false);
+		out.write(contents.getBytes("UTF-8"));
+		out.close();
+	}
+
+	// Compare goodput, p99 and allocations with a CSV written by an earlier run, true if nothing regressed
+	private boolean compare(String filename, double threshold) throws IOException {
+		Map<String, String[]> baseline = new HashMap<String, String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		String line;
+
+		while((line = in.readLine()) != null) {
+			String[] columns = line.split(",");
+			if(columns.length == 10 && !columns[0].equals("profile")) baseline.put(columns[0] + "," + columns[1], columns);
+		}
+		in.close();
+
+		boolean ok = true;
+		for (Result result : this.results) {
+			String[] before = baseline.get(result.profile + "," + result.kind);
+			if(before == null) continue;
+
+			ok &= check(result, "goodput", Double.parseDouble(before[5]), result.goodput(), threshold, false);
+			ok &= check(result, "p99", Double.parseDouble(before[8]), result.percentile(99), threshold, true);
+			ok &= check(result, "allocations", Double.parseDouble(before[9]), result.allocatedPerRun(), threshold, true);
+			if(result.failed > Integer.parseInt(before[3])) {
+				System.out.println("REGRESSION " + result.profile + " " + result.kind + " failed runs " + before[3] + " -> " + result.failed);
+				ok = false;
+			}
+		}
+		return ok;
+	}
+
+	// Report a value worse than baseline by more than threshold, lower is better when lowerBetter
+	private static boolean check(Result result, String name, double before, double now, double threshold, boolean lowerBetter) {
+		if(before <= 0 || now < 0) return true;
+
+		double change = (now - before) / before;
+		if(lowerBetter ? change <= threshold : -change <= threshold) return true;
+
+		System.out.printf(Locale.ROOT, "REGRESSION %s %s %s %.2f -> %.2f (%+.1f%%)%n", result.profile, result.kind, name, before, now, change * 100);
+		return false;
+	}
+
+	private static byte[] read(String filename) throws IOException {
+		FileInputStream in = new FileInputStream(filename);
+		byte[] bytes = new byte[(int) in.getChannel().size()];
+		int read = 0;
+
+		while(read < bytes.length) {
+			int n = in.read(bytes, read, bytes.length - read);
+			if(n < 0) break;
+			read += n;
+		}
+		in.close();
+		return bytes;
+	}
+
+	// Measurements of one profile and kind
+	private static class Result {
+		String profile;
+		String kind;
+		long[] times; // Completion times in ns
+		int count = 0;
+		int failed = 0;
+		long payload = 0; // Bytes transferred in all runs
+		long packets = 0; // Data packets on the wire, sent for firmware and received for photos
+		long repeated = 0; // Retransmitted firmware segments or duplicate photo segments
+		long allocated = 0; // Bytes allocated by the transfer thread, -1 if unknown
+
+		Result(String profile, String kind, int runs) {
+			this.profile = profile;
+			this.kind = kind;
+			this.times = new long[runs];
+		}
+
+		void add(long elapsed, int payload, boolean ok, long allocated, TransferMetrics metrics) {
+			this.times[this.count++] = elapsed;
+			this.payload += payload;
+			if(!ok) this.failed++;
+
+			if(this.kind.equals("photo")) {
+				this.packets += metrics.getPacketsReceived();
+				this.repeated += metrics.getDuplicates();
+			} else {
+				this.packets += metrics.getPacketsSent();
+				this.repeated += metrics.getRetransmits();
+			}
+
+			if(allocated < 0 || this.allocated < 0) this.allocated = -1;
+			else this.allocated += allocated;
+		}
+
+		long goodput() {
+			long total = 0;
+
+			for (int i = 0; i < this.count; i++) total += this.times[i];
+			return total > 0 ? this.payload * 1000000000L / total : 0;
+		}
+
+		double retransmitRatio() {
+			return this.packets > 0 ? (double) this.repeated / this.packets : 0;
+		}
+
+		// Completion time percentile in ms, nearest rank
+		double percentile(int percentile) {
+			if(this.count == 0) return 0;
+
+			long[] sorted = Arrays.copyOf(this.times, this.count);
+			Arrays.sort(sorted);
+			int rank = (int) Math.ceil(percentile / 100.0 * this.count) - 1;
+			return sorted[Math.max(0, rank)] / 1000000.0;
+		}
+
+		long allocatedPerRun() {
+			return this.allocated < 0 || this.count == 0 ? -1 : this.allocated / this.count;
+		}
+
+		String csv() {
+			return String.format(Locale.ROOT, "%s,%s,%d,%d,%d,%d,%.4f,%.2f,%.2f,%d", this.profile, this.kind, this.count, this.failed,
+					this.payload, goodput(), retransmitRatio(), percentile(50), percentile(99), allocatedPerRun());
+		}
+
+		String json() {
+			return String.format(Locale.ROOT, "{\"profile\": \"%s\", \"kind\": \"%s\", \"runs\": %d, \"failed\": %d, \"payloadBytes\": %d, "
+					+ "\"goodputBytesPerSecond\": %d, \"retransmitRatio\": %.4f, \"p50Millis\": %.2f, \"p99Millis\": %.2f, "
+					+ "\"allocatedBytesPerRun\": %d}", this.profile, this.kind, this.count, this.failed, this.payload, goodput(),
+					retransmitRatio(), percentile(50), percentile(99), allocatedPerRun());
+		}
+	}
+}
@@ -0,0 +1,61 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PhotoPacket header parsing and packet encoding
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+
+	private ByteBuffer datagram; // Received data packet
+	private ByteBuffer control = ByteBuffer.allocate(PhotoPacket.HEADER_LENGTH); // ACK being encoded
+	private ByteBuffer data = ByteBuffer.allocate(PhotoPacket.MAX_LENGTH); // Data packet being encoded
+	private byte[] payload = new byte[255];
+	private PhotoPacket view = new PhotoPacket();
+	private int ack = 0;
+
+	@Setup
+	public void setup() {
+		this.datagram = ByteBuffer.allocate(PhotoPacket.MAX_LENGTH);
+		PhotoPacket.encode(this.datagram, 0x1234abcd, 2040, 0, 0).put(this.payload).flip();
+	}
+
+	// Read every header field of a received datagram
+	@Benchmark
+	public int decode() {
+		PhotoPacket ppacket = this.view.wrap(this.datagram, null);
+		return ppacket.conNum() ^ ppacket.seqNum() ^ ppacket.ackNum() ^ ppacket.signs() ^ ppacket.dataLength();
+	}
+
+	// Encode a 9 byte ACK, as PhotoClient does for every data packet
+	@Benchmark
+	public ByteBuffer encodeAck() {
+		this.ack += 255;
+		return (ByteBuffer) PhotoPacket.encode(this.control, 0x1234abcd, 0, this.ack, 0).flip();
+	}
+
+	// Encode a full data packet from a byte array
+	@Benchmark
+	public ByteBuffer encodeData() {
+		this.ack += 255;
+		return (ByteBuffer) PhotoPacket.encode(this.data, 0x1234abcd, this.ack, 0, 0).put(this.payload).flip();
+	}
+}
@@ -0,0 +1,142 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Per packet cost of PhotoClient reassembly: ReceiveWindow against the former ArrayList<Boolean>
+// bookkeeping, and unwrapping of seqNum
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveWindowBenchmark {
+
+	private static final int SEGMENTS = 20000; // Segments in one simulated photo
+	private static final int WINDOW = 8; // Segments robot keeps in flight
+	private static final int PACKETS = SEGMENTS + SEGMENTS / 10; // Arrivals including duplicates
+
+	private int[] order; // Segment indexes in order of arrival
+	private int[] seqNums; // 16 bit sequence numbers of the arrivals
+	private ByteBuffer[] datagrams = new ByteBuffer[WINDOW * 2];
+
+	@Setup
+	public void setup() {
+		this.order = arrivalOrder(new Random(42));
+		this.seqNums = new int[this.order.length];
+
+		for (int i = 0; i < this.order.length; i++) {
+			this.seqNums[i] = (this.order[i] * 255) & 0xFFFF;
+		}
+		for (int i = 0; i < this.datagrams.length; i++) {
+			this.datagrams[i] = ByteBuffer.allocate(PhotoPacket.MAX_LENGTH);
+			this.datagrams[i].limit(PhotoPacket.HEADER_LENGTH + 255);
+		}
+	}
+
+	// Segment indexes as they arrive, shuffled inside each window with some duplicates
+	private static int[] arrivalOrder(Random random) {
+		int[] order = new int[PACKETS];
+		int count = 0;
+
+		for (int start = 0; count < PACKETS; start += WINDOW) {
+			int[] window = new int[WINDOW];
+			for (int i = 0; i < WINDOW; i++) window[i] = start + i;
+			for (int i = WINDOW - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int swap = window[i];
+				window[i] = window[j];
+				window[j] = swap;
+			}
+			for (int i = 0; i < WINDOW && count < PACKETS; i++) {
+				order[count++] = window[i];
+				if(random.nextInt(10) == 0 && count < PACKETS) order[count++] = window[i];
+			}
+		}
+
+		return order;
+	}
+
+	// Former PhotoClient setSign, savePacket and findAck
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public int legacy() {
+		ArrayList<Boolean> flags = new ArrayList<Boolean>();
+		ArrayList<ByteBuffer> packets = new ArrayList<ByteBuffer>();
+		int ack = 0;
+
+		for (int n = 0; n < this.order.length; n++) {
+			int index = this.order[n];
+
+			for (int i = flags.size(); i <= index; i++) {
+				flags.add(i, false);
+				packets.add(i, null);
+			}
+			flags.set(index, true);
+			packets.set(index, this.datagrams[index % this.datagrams.length]);
+
+			int found = ack;
+			for (int i = ack / 255; i < flags.size(); i++) {
+				if(flags.get(i) == false) break;
+				if(i == flags.size() - 1) found += packets.get(i).limit() - PhotoPacket.HEADER_LENGTH;
+				else found += 255;
+			}
+			ack = found;
+		}
+
+		return ack;
+	}
+
+	// PhotoClient with ReceiveWindow
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public int ring() {
+		ReceiveWindow window = new ReceiveWindow();
+		int ack = 0;
+
+		for (int n = 0; n < this.order.length; n++) {
+			int index = this.order[n];
+
+			if(window.accepts(index)) window.put(index, this.datagrams[index % this.datagrams.length], n);
+
+			ByteBuffer datagram;
+			while((datagram = window.poll()) != null) {
+				ack += datagram.limit() - PhotoPacket.HEADER_LENGTH;
+			}
+		}
+
+		return ack;
+	}
+
+	// Segment index from 16 bit sequence number, relative to the previous one as the window moves
+	@Benchmark
+	@OperationsPerInvocation(PACKETS)
+	public long unwrap() {
+		long offset = 0;
+		long sum = 0;
+
+		for (int n = 0; n < this.seqNums.length; n++) {
+			offset = SerialNumber.unwrap(offset, this.seqNums[n]);
+			sum += offset / 255;
+		}
+
+		return sum;
+	}
+}
@@ -0,0 +1,74 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// FirmwareSender window bookkeeping: ack unwrapping and the scoreboard with its timers
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SenderWindowBenchmark {
+
+	private static final int SEGMENTS = 4096; // Segments of a 1 MB firmware
+	private static final int WINDOW = 8; // Segments in flight
+
+	private int[] ackNums = new int[SEGMENTS]; // 16 bit cumulative acks of every segment
+	private int[] expired = new int[Scoreboard.SLOTS];
+	private TransferMetrics metrics = new TransferMetrics("firmware", "bench");
+
+	@Setup
+	public void setup() {
+		for (int i = 0; i < SEGMENTS; i++) {
+			this.ackNums[i] = ((i + 1) * 255) & 0xFFFF;
+		}
+	}
+
+	// Ack offset from 16 bit ack number, relative to the window start
+	@Benchmark
+	@OperationsPerInvocation(SEGMENTS)
+	public long unwrapAck() {
+		long windowStart = 0;
+
+		for (int i = 0; i < SEGMENTS; i++) {
+			windowStart = SerialNumber.unwrap(windowStart, this.ackNums[i]);
+		}
+
+		return windowStart;
+	}
+
+	// Send a segment, take its cumulative ack and slide the window, as on a clean link
+	@Benchmark
+	@OperationsPerInvocation(SEGMENTS)
+	public long advance() {
+		Scoreboard board = new Scoreboard();
+		long now = 1000000000L;
+		long rtt = 0;
+
+		for (int i = 0; i < WINDOW; i++) board.sent(i, now, 100);
+
+		for (int i = 0; i < SEGMENTS; i++) {
+			now += 10000;
+			rtt += board.ack(i + 1, now, this.metrics);
+			if(i + WINDOW < SEGMENTS) board.sent(i + WINDOW, now, 100);
+			board.expired(now, this.expired);
+		}
+
+		return rtt + board.nextDeadline();
+	}
+}
@@ -0,0 +1,73 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+// Parsing and caching of robot addresses given as host or host:port, and the spread of SYN timeouts
+class AddressCacheTest {
+
+	@Test
+	void parsesPortAndDefaultsToRobotPort() throws UnknownHostException {
+		InetSocketAddress[] given = AddressCache.resolve("127.0.0.1:4123");
+		InetSocketAddress[] standard = AddressCache.resolve("127.0.0.1");
+
+		assertEquals(1, given.length);
+		assertEquals("127.0.0.1", given[0].getAddress().getHostAddress());
+		assertEquals(4123, given[0].getPort());
+		assertEquals(Connection.PORT, standard[0].getPort());
+	}
+
+	@Test
+	void parsesBracketedIpv6() throws UnknownHostException {
+		InetSocketAddress given = AddressCache.resolve("[::1]:4123")[0];
+		InetSocketAddress bracketed = AddressCache.resolve("[::1]")[0];
+		InetSocketAddress bare = AddressCache.resolve("::1")[0];
+
+		assertTrue(given.getAddress().isLoopbackAddress());
+		assertEquals(4123, given.getPort());
+		assertEquals(Connection.PORT, bracketed.getPort());
+		assertEquals(given.getAddress(), bare.getAddress());
+		assertEquals(Connection.PORT, bare.getPort());
+	}
+
+	@Test
+	void rejectsBadPortsAsUnknownHosts() {
+		for (final String host : new String[] {"127.0.0.1:abc", "127.0.0.1:", "127.0.0.1:0", "127.0.0.1:-1", "127.0.0.1:65536", "127.0.0.1:99999999999",
+				"[::1]:0", "[::1]x", "[::1"}) {
+			assertThrows(UnknownHostException.class, new Executable() {
+				public void execute() throws Throwable {
+					AddressCache.resolve(host);
+				}
+			}, host);
+		}
+	}
+
+	@Test
+	void keepsAddressesUntilInvalidated() throws UnknownHostException {
+		InetSocketAddress[] first = AddressCache.resolve("localhost:4124");
+
+		assertSame(first, AddressCache.resolve("localhost:4124"));
+		AddressCache.invalidate("localhost:4124");
+		assertNotSame(first, AddressCache.resolve("localhost:4124"));
+	}
+
+	@Test
+	void jitterSpreadsTimeoutByAQuarter() {
+		for (int i = 0; i < 10000; i++) {
+			int timeout = Connection.jitter(200);
+			assertTrue(timeout >= 150 && timeout <= 250, "jitter " + timeout);
+		}
+		assertEquals(1, Connection.jitter(1));
+	}
+}
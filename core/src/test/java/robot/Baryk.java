@@ -0,0 +1,70 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// Baryk played by a plain datagram socket for tests of failing transfers. It answers SYN and sends a
+// download one photo segment. Then it either resets the transfer, an upload at its first segment, or stays silent
+class Baryk extends Thread {
+
+	private static final int SYN = 4; // SYN flag
+	private static final int RST = 1; // RST flag
+	private static final int CONNUM = 0x5e55105;
+
+	private DatagramChannel channel;
+	private boolean resets; // Reset transfers instead of falling silent
+
+	Baryk(boolean resets) throws IOException {
+		this.resets = resets;
+		this.channel = DatagramChannel.open();
+		this.channel.bind(new InetSocketAddress("127.0.0.1", 0));
+		setDaemon(true);
+		start();
+	}
+
+	int port() {
+		return this.channel.socket().getLocalPort();
+	}
+
+	public void run() {
+		ByteBuffer datagram = ByteBuffer.allocate(PhotoPacket.MAX_LENGTH);
+
+		try {
+			while(true) {
+				datagram.clear();
+				SocketAddress client = this.channel.receive(datagram);
+				int signs = datagram.get(8);
+
+				if(signs == SYN) {
+					ByteBuffer answer = PhotoPacket.encode(ByteBuffer.allocate(10), CONNUM, 0, 0, SYN).put(datagram.get(9));
+					answer.flip();
+					this.channel.send(answer, client);
+					if(datagram.get(9) == Robot.DOWNLOAD[0]) {
+						ByteBuffer segment = PhotoPacket.encode(ByteBuffer.allocate(264), CONNUM, 0, 0, 0).put(new byte[255]);
+						segment.flip();
+						this.channel.send(segment, client);
+						if(this.resets) reset(client);
+					}
+				}
+				else if(this.resets && signs == 0 && datagram.position() > PhotoPacket.HEADER_LENGTH) reset(client);
+			}
+		}
+		catch(IOException e) {} // Closed
+	}
+
+	private void reset(SocketAddress client) throws IOException {
+		ByteBuffer reset = PhotoPacket.encode(ByteBuffer.allocate(9), CONNUM, 0, 0, RST);
+		reset.flip();
+		this.channel.send(reset, client);
+	}
+
+	void close() throws IOException, InterruptedException {
+		this.channel.close();
+		join();
+	}
+}
@@ -0,0 +1,103 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+// Photo sessions written in the PacketCapture format and played back against the current PhotoClient
+class CaptureReplayTest {
+
+	private static final int CONNUM = 0x1234abcd;
+	private static final int SYN = 4; // SYN flag
+	private static final int FIN = 2; // FIN flag
+	private static final long MS = 1000000;
+	private static final int PHOTO = 1000; // Bytes, three full segments and a short one
+
+	@Test
+	void replaysCapturedDownloadWithTheSameAcks() throws IOException {
+		File file = capture(PHOTO);
+
+		try {
+			CaptureReplay replay = new CaptureReplay(file.getPath());
+
+			assertEquals(1006 * MS, replay.replay(), "session finished at the FIN of baryk in virtual time");
+			assertEquals(-1, replay.divergence());
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void findsFirstDatagramSentDifferently() throws IOException {
+		File file = capture(PHOTO - 100); // The field acked the short last segment only in part
+
+		try {
+			CaptureReplay replay = new CaptureReplay(file.getPath());
+
+			replay.replay();
+			assertEquals(3, replay.divergence()); // Acks of three full segments, then the last ack differs
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void rejectsFileWithoutMagic() throws IOException {
+		final File file = File.createTempFile("capture", ".bin");
+
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(new byte[PacketCapture.HEADER_LENGTH]);
+			out.close();
+			assertThrows(IOException.class, new Executable() {
+				public void execute() throws Throwable {
+					new CaptureReplay(file.getPath());
+				}
+			});
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	// Download of PHOTO bytes a millisecond apart, each segment acked as it arrives until acked bytes
+	private static File capture(int acked) throws IOException {
+		ByteBuffer out = ByteBuffer.allocate(1 << 16);
+		long time = 1000 * MS;
+
+		out.putInt(PacketCapture.MAGIC).putLong(System.currentTimeMillis()).putLong(time);
+		record(out, time, PacketLog.SEND, 0, 0, 0, SYN, new byte[] {1});
+		record(out, time += MS, PacketLog.RCVD, CONNUM, 0, 0, SYN, new byte[] {1});
+
+		for (int offset = 0; offset < PHOTO; offset += 255) {
+			int length = Math.min(255, PHOTO - offset);
+			record(out, time += MS, PacketLog.RCVD, CONNUM, offset, 0, 0, new byte[length]);
+			record(out, time, PacketLog.SEND, CONNUM, 0, Math.min(acked, offset + length), 0, new byte[0]);
+		}
+		record(out, time += MS, PacketLog.RCVD, CONNUM, PHOTO, 0, FIN, new byte[0]);
+		record(out, time, PacketLog.SEND, CONNUM, 0, PHOTO, FIN, new byte[0]);
+
+		File file = File.createTempFile("capture", ".bin");
+		FileOutputStream stream = new FileOutputStream(file);
+		stream.write(out.array(), 0, out.position());
+		stream.close();
+		return file;
+	}
+
+	private static void record(ByteBuffer out, long time, int direction, int conNum, int seqNum, int ackNum, int signs, byte[] data) {
+		out.putLong(time).put((byte) direction).putShort((short) (PhotoPacket.HEADER_LENGTH + data.length));
+		out.putInt(conNum).putShort((short) seqNum).putShort((short) ackNum).put((byte) signs).put(data);
+	}
+}
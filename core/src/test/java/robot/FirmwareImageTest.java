@@ -0,0 +1,50 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+
+import org.junit.jupiter.api.Test;
+
+// Segments sliced out of the mapped image and its SHA-256, hashed once per version of the file
+class FirmwareImageTest {
+
+	@Test
+	void slicesSegmentsAndHashesOncePerVersion() throws IOException {
+		File file = File.createTempFile("firmware", ".bin");
+		byte[] bytes = RobotSimulator.randomPhoto(1000, 9);
+
+		try {
+			Files.write(file.toPath(), bytes);
+			long modified = file.lastModified();
+			FirmwareImage image = new FirmwareImage(file.getPath());
+			MessageDigest digest = Checksum.sha256();
+			digest.update(bytes);
+
+			assertEquals(1000, image.length());
+			assertEquals(255, image.segment(255).remaining());
+			assertEquals(bytes[510], image.segment(510).get(0));
+			assertEquals(1000 - 765, image.segment(765).remaining());
+			assertEquals(Checksum.hex(digest), image.checksum());
+
+			// Same path, length and modification time is taken for the same file, its hash is not recomputed
+			bytes[0] ^= 1;
+			Files.write(file.toPath(), bytes);
+			file.setLastModified(modified);
+			assertEquals(image.checksum(), new FirmwareImage(file.getPath()).checksum());
+
+			// A new version is hashed again
+			file.setLastModified(modified + 2000);
+			assertNotEquals(image.checksum(), new FirmwareImage(file.getPath()).checksum());
+		}
+		finally {
+			file.delete();
+		}
+	}
+}
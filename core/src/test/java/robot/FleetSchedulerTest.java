@@ -0,0 +1,47 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+
+// Fleet transfers with an in-process simulated robot: a session that fails on its own is reset and
+// counted, the others with the same robot finish
+class FleetSchedulerTest {
+
+	@Test
+	void failedSessionDoesNotStopTheOthers() throws IOException, InterruptedException {
+		byte[] photo = RobotSimulator.randomPhoto(20000, 5);
+		RobotSimulator simulator = new RobotSimulator(0, photo, new Impairment(), ".");
+		Thread thread = new Thread(simulator, "simulator");
+		File directory = Files.createTempDirectory("fleet").toFile();
+		File good = new File(directory, "good.png");
+		String host = "127.0.0.1:" + simulator.port();
+
+		thread.start();
+		try {
+			FleetScheduler scheduler = new FleetScheduler(new SessionSelector());
+
+			scheduler.photo(host, directory.getPath()); // Opening a directory fails once the session starts
+			scheduler.photo(host, good.getPath());
+			scheduler.firmware(host, new File(directory, "missing.bin").getPath()); // Cannot start at all
+			scheduler.run();
+
+			assertEquals(2, scheduler.failed());
+			assertArrayEquals(photo, Files.readAllBytes(good.toPath()));
+		}
+		finally {
+			Lingerer.drain();
+			simulator.close();
+			thread.join();
+			good.delete();
+			directory.delete();
+		}
+	}
+}
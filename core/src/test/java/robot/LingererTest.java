@@ -0,0 +1,145 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+// Teardown of sessions handed to the lingerer, with a plain datagram socket on loopback playing baryk
+@Timeout(10)
+class LingererTest {
+
+	private static final int FIN = 2; // FIN flag
+	private static final int CONNUM = 0x0badcafe;
+
+	private DatagramChannel baryk;
+
+	@BeforeEach
+	void open() throws IOException {
+		this.baryk = DatagramChannel.open();
+		this.baryk.bind(new InetSocketAddress("127.0.0.1", 0));
+		this.baryk.socket().setSoTimeout(5000);
+	}
+
+	@AfterEach
+	void close() throws IOException {
+		this.baryk.close();
+	}
+
+	@Test
+	void initiatorRepeatsFinUntilBarykAnswers() throws IOException {
+		Connection connection = connection();
+
+		connection.linger(1000, 0, true);
+
+		// Nothing came back within the RTO, the same FIN again
+		ByteBuffer fin = receive();
+		assertEquals(CONNUM, fin.getInt(0));
+		assertEquals(1000, fin.getChar(4));
+		assertEquals(FIN, fin.get(8));
+
+		answer(connection, FIN);
+		Lingerer.drain();
+		assertFalse(connection.channel.isOpen());
+	}
+
+	@Test
+	void answeringSessionRepeatsFinAndEndsWhenQuiet() throws IOException {
+		Connection connection = connection();
+
+		connection.linger(0, 1000, false);
+
+		// Baryk lost our FIN and asks again
+		answer(connection, FIN);
+		ByteBuffer fin = receive();
+		assertEquals(CONNUM, fin.getInt(0));
+		assertEquals(1000, fin.getChar(6));
+		long repeated = System.currentTimeMillis();
+
+		Lingerer.drain();
+		assertTrue(System.currentTimeMillis() - repeated >= Lingerer.QUIET - 50, "released before quiet");
+		assertFalse(connection.channel.isOpen());
+	}
+
+	@Test
+	void initiatorGivesUpAfterMaxLinger() throws IOException {
+		Connection connection = connection();
+		long start = System.nanoTime();
+
+		connection.linger(1000, 0, true); // Baryk never answers
+		Lingerer.drain();
+
+		long lingered = (System.nanoTime() - start) / 1000000;
+		assertTrue(lingered >= Lingerer.MAX - 50 && lingered < Lingerer.MAX + 1000, "lingered " + lingered + " ms");
+		assertFalse(connection.channel.isOpen());
+	}
+
+	@Test
+	void brokenSelectorReleasesSessionsAndIsReplaced() throws IOException, InterruptedException {
+		Connection connection = connection();
+		Lingerer lingerer = Lingerer.get();
+
+		connection.linger(1000, 0, true);
+		lingerer.selector.close();
+		Lingerer.drain();
+
+		assertFalse(connection.channel.isOpen());
+		for (int i = 0; i < 100 && !lingerer.failed(); i++) Thread.sleep(10);
+		assertTrue(lingerer.failed());
+		assertTrue(Lingerer.get() != lingerer, "new lingerer");
+
+		// The new one lingers as before
+		Connection next = connection();
+		next.linger(1000, 0, true);
+		receive();
+		answer(next, FIN);
+		Lingerer.drain();
+		assertFalse(next.channel.isOpen());
+	}
+
+	@Test
+	void closesHandedChannelNoSessionUses() throws IOException, InterruptedException {
+		DatagramChannel channel = DatagramChannel.open();
+
+		channel.configureBlocking(false);
+		Lingerer.get();
+		Lingerer.adopt(channel);
+
+		for (int i = 0; i < 100 && channel.isOpen(); i++) Thread.sleep(10);
+		assertFalse(channel.isOpen());
+	}
+
+	private Connection connection() throws IOException {
+		Connection connection = new Connection("127.0.0.1:" + this.baryk.socket().getLocalPort());
+
+		connection.established(CONNUM);
+		return connection;
+	}
+
+	// Datagram baryk got, header and data
+	private ByteBuffer receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[PhotoPacket.MAX_LENGTH], PhotoPacket.MAX_LENGTH);
+
+		this.baryk.socket().receive(packet);
+		return ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+	}
+
+	private void answer(Connection connection, int signs) throws IOException {
+		ByteBuffer datagram = PhotoPacket.encode(ByteBuffer.allocate(PhotoPacket.HEADER_LENGTH), CONNUM, 0, 0, signs);
+
+		datagram.flip();
+		this.baryk.send(datagram, connection.channel.getLocalAddress());
+	}
+}
@@ -0,0 +1,170 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+// PNG structure checked as photo bytes arrive in segments of any size, and a download from an
+// in-process simulated robot stopped at the first corrupt byte
+class PngValidatorTest {
+
+	@Test
+	void acceptsValidPngInAnySegments() {
+		byte[] png = png(3000);
+		Random random = new Random(6);
+
+		for (int round = 0; round < 100; round++) {
+			PngValidator validator = new PngValidator(true);
+			int offset = 0;
+
+			while(offset < png.length) {
+				int length = Math.min(png.length - offset, 1 + random.nextInt(300));
+				assertTrue(validator.update(ByteBuffer.wrap(png, offset, length)), validator.error());
+				offset += length;
+			}
+			assertTrue(validator.checked());
+			assertTrue(validator.complete());
+			assertNull(validator.error());
+		}
+	}
+
+	@Test
+	void leavesBufferAsItWas() {
+		ByteBuffer data = ByteBuffer.wrap(png(100), 5, 60);
+
+		new PngValidator(true).update(data);
+		assertEquals(5, data.position());
+		assertEquals(65, data.limit());
+	}
+
+	@Test
+	void failsOnCorruptCrc() {
+		byte[] png = png(3000);
+		png[100] ^= 1; // Inside IDAT
+
+		PngValidator validator = new PngValidator(true);
+		assertFalse(validator.update(ByteBuffer.wrap(png)));
+		assertTrue(validator.error().startsWith("CRC mismatch in chunk IDAT"), validator.error());
+	}
+
+	@Test
+	void failsOnDataAfterIend() {
+		byte[] complete = png(100);
+		byte[] png = Arrays.copyOf(complete, complete.length + 1);
+		PngValidator validator = new PngValidator(true);
+
+		assertFalse(validator.update(ByteBuffer.wrap(png)));
+		assertTrue(validator.error().startsWith("Data after IEND"));
+	}
+
+	@Test
+	void skipsOtherDataUnlessPngRequired() {
+		byte[] photo = RobotSimulator.randomPhoto(1000, 7);
+		PngValidator auto = new PngValidator(false);
+		PngValidator required = new PngValidator(true);
+
+		assertTrue(auto.update(ByteBuffer.wrap(photo)));
+		assertFalse(auto.checked());
+		assertFalse(required.update(ByteBuffer.wrap(photo)));
+		assertTrue(required.error().startsWith("Not a PNG"));
+	}
+
+	@Test
+	void truncatedPngIsIncomplete() {
+		byte[] png = png(3000);
+		PngValidator validator = new PngValidator(true);
+
+		assertTrue(validator.update(ByteBuffer.wrap(png, 0, png.length - 5)));
+		assertTrue(validator.checked());
+		assertFalse(validator.complete());
+	}
+
+	@Test
+	void downloadStopsAtCorruptChunk() throws IOException, InterruptedException {
+		final byte[] png = png(20000);
+		png[10000] ^= 1;
+		RobotSimulator simulator = new RobotSimulator(0, png, new Impairment(), ".");
+		Thread thread = new Thread(simulator, "simulator");
+		final File file = File.createTempFile("photo", ".png");
+
+		thread.start();
+		try {
+			final Connection connection = new Connection("127.0.0.1:" + simulator.port());
+			connection.init(Robot.DOWNLOAD);
+
+			assertThrows(StreamCorruptedException.class, new Executable() {
+				public void execute() throws Throwable {
+					new PhotoClient(connection, file.getPath()).run();
+				}
+			});
+			assertFalse(file.exists(), "corrupt photo deleted");
+			assertEquals(0, simulator.completed());
+		}
+		finally {
+			Lingerer.drain();
+			simulator.close();
+			thread.join();
+			file.delete();
+		}
+	}
+
+	@Test
+	void downloadKeepsValidPng() throws IOException, InterruptedException {
+		byte[] png = png(20000);
+		RobotSimulator simulator = new RobotSimulator(0, png, new Impairment(), ".");
+		Thread thread = new Thread(simulator, "simulator");
+		File file = File.createTempFile("photo", ".png");
+
+		thread.start();
+		try {
+			Connection connection = new Connection("127.0.0.1:" + simulator.port());
+			connection.init(Robot.DOWNLOAD);
+			new PhotoClient(connection, file.getPath()).run();
+
+			assertArrayEquals(png, Files.readAllBytes(file.toPath()));
+		}
+		finally {
+			Lingerer.drain();
+			simulator.close();
+			thread.join();
+			file.delete();
+		}
+	}
+
+	// PNG of IHDR, one IDAT of random data and IEND, structurally valid
+	static byte[] png(int data) {
+		ByteBuffer png = ByteBuffer.allocate(8 + 25 + 12 + data + 12);
+
+		png.put(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+		chunk(png, "IHDR", ByteBuffer.allocate(13).putInt(16).putInt(16).put((byte) 8).put((byte) 2).array());
+		chunk(png, "IDAT", RobotSimulator.randomPhoto(data, 8));
+		chunk(png, "IEND", new byte[0]);
+		return png.array();
+	}
+
+	private static void chunk(ByteBuffer png, String type, byte[] data) {
+		CRC32 crc = new CRC32();
+		byte[] name = type.getBytes();
+
+		crc.update(name);
+		crc.update(data);
+		png.putInt(data.length).put(name).put(data).putInt((int) crc.getValue());
+	}
+}
@@ -0,0 +1,82 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// Segments of a photo many times longer than the 16 bit seqNum space, arriving reordered and duplicated
+// within the window, are mapped to window slots from their unwrapped seqNum as PhotoClient does
+class ReceiveWindowTest {
+
+	private static final int SEGMENTS = 3000; // 765000 bytes, almost twelve wraps of seqNum
+	private static final int WINDOW = 2048 / 255; // Segments baryk keeps in flight
+
+	@Test
+	void deliversInOrderAcrossSeqNumWraps() {
+		Random random = new Random(3);
+		ReceiveWindow window = new ReceiveWindow();
+		long ack = 0; // Bytes delivered in order
+		int delivered = 0;
+
+		while(delivered < SEGMENTS) {
+			// Anything from a stale segment just behind the window to the last one baryk may send
+			int index = Math.max(0, window.base() - 2 + random.nextInt(WINDOW + 2));
+			if(index >= SEGMENTS) continue;
+
+			long offset = SerialNumber.unwrap(ack, (char) (index * 255));
+			assertEquals(index * 255L, offset, "seqNum of segment " + index);
+
+			int slot = (int) (offset / 255);
+			if(offset < ack) {
+				assertFalse(window.accepts(slot), "stale segment " + index);
+				continue;
+			}
+			if(!window.accepts(slot)) continue; // Duplicate of a held segment
+
+			ByteBuffer datagram = ByteBuffer.allocate(4);
+			datagram.putInt(0, index);
+			window.put(slot, datagram, index);
+
+			ByteBuffer next;
+			while((next = window.poll()) != null) {
+				assertEquals(delivered, next.getInt(0));
+				assertEquals(delivered, window.polledArrival());
+				delivered++;
+				ack += 255;
+			}
+			assertEquals(delivered, window.base());
+		}
+	}
+
+	@Test
+	void refusesSegmentsBeyondTheWindow() {
+		ReceiveWindow window = new ReceiveWindow();
+		int base = 70000 / 255; // Past the first wrap
+
+		for (int i = 0; i < base; i++) {
+			window.put(i, ByteBuffer.allocate(1), 0);
+			window.poll();
+		}
+
+		assertEquals(base, window.base());
+		assertFalse(window.accepts(base - 1));
+		assertTrue(window.accepts(base + ReceiveWindow.SLOTS - 1));
+		assertFalse(window.accepts(base + ReceiveWindow.SLOTS));
+
+		// A hole keeps later segments back until it is filled
+		window.put(base + 1, ByteBuffer.allocate(1), 0);
+		assertFalse(window.accepts(base + 1));
+		assertNull(window.poll());
+		window.put(base, ByteBuffer.allocate(1), 0);
+		assertTrue(window.poll() != null && window.poll() != null);
+		assertEquals(base + 2, window.base());
+	}
+}
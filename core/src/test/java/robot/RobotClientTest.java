@@ -0,0 +1,77 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.function.Executable;
+
+// Futures of RobotClient complete when baryk falls silent and free their thread when cancelled
+@Timeout(20)
+class RobotClientTest {
+
+	@Test
+	void silentBarykFailsDownloadAndUpload() throws Exception {
+		Baryk baryk = new Baryk(false);
+		RobotClient client = new RobotClient(RobotClient.defaultExecutor(), 300);
+		File firmware = File.createTempFile("firmware", ".bin");
+
+		try {
+			Files.write(firmware.toPath(), RobotSimulator.randomPhoto(5000, 12));
+			assertTimesOut(client.download("127.0.0.1:" + baryk.port()));
+			assertTimesOut(client.upload("127.0.0.1:" + baryk.port(), firmware.toPath()));
+		}
+		finally {
+			baryk.close();
+			firmware.delete();
+		}
+	}
+
+	@Test
+	void cancelAbortsTransferAndFreesItsThread() throws Exception {
+		Baryk baryk = new Baryk(false);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		RobotClient client = new RobotClient(executor, 0); // Nothing but cancel ends the download
+		Path photo = Files.createTempFile("photo", ".png");
+
+		try {
+			CompletableFuture<Path> download = client.download("127.0.0.1:" + baryk.port(), photo);
+
+			while(Files.size(photo) == 0) Thread.sleep(10); // First segment written
+			assertTrue(download.cancel(true));
+
+			// The only thread is free again once the cancelled session aborted
+			client.prepare("127.0.0.1").get(5, TimeUnit.SECONDS);
+			assertFalse(Files.exists(photo), "partial photo deleted");
+		}
+		finally {
+			executor.shutdownNow();
+			baryk.close();
+			Files.deleteIfExists(photo);
+		}
+	}
+
+	private static void assertTimesOut(final CompletableFuture<?> future) {
+		ExecutionException e = assertThrows(ExecutionException.class, new Executable() {
+			public void execute() throws Throwable {
+				future.get(5, TimeUnit.SECONDS);
+			}
+		});
+		assertTrue(e.getCause() instanceof SocketTimeoutException, e.getCause().toString());
+	}
+}
@@ -0,0 +1,76 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.function.Executable;
+
+// Control connections of the daemon: request lines are capped and a silent client is dropped
+@Timeout(10)
+class RobotDaemonTest {
+
+	// Spool and token in a temporary directory, set before RobotDaemon reads them
+	@BeforeAll
+	static void spool() throws IOException {
+		File directory = Files.createTempDirectory("robot-daemon").toFile();
+
+		directory.deleteOnExit();
+		System.setProperty("robot.daemon.spool", new File(directory, "spool").getPath());
+		System.setProperty("robot.daemon.token", new File(directory, "token").getPath());
+	}
+
+	@Test
+	void readsLinesUpToTheCap() throws IOException {
+		StringBuilder longest = new StringBuilder();
+		while(longest.length() < 4096) longest.append('x');
+		final StringReader in = new StringReader("token\r\njob\n" + longest + "\n" + longest + "x\n");
+
+		assertEquals("token", RobotDaemon.readLine(in));
+		assertEquals("job", RobotDaemon.readLine(in));
+		assertEquals(longest.toString(), RobotDaemon.readLine(in));
+		assertThrows(IOException.class, new Executable() {
+			public void execute() throws Throwable {
+				RobotDaemon.readLine(in);
+			}
+		});
+		assertNull(RobotDaemon.readLine(new StringReader("")));
+	}
+
+	@Test
+	void dropsClientNotSendingItsToken() throws IOException, InterruptedException {
+		RobotDaemon daemon = new RobotDaemon(0);
+		Thread thread = new Thread(daemon, "daemon");
+		thread.start();
+
+		try {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(), daemon.port());
+			InputStream in = socket.getInputStream();
+			long start = System.nanoTime();
+
+			assertEquals(-1, in.read(), "closed without an answer");
+			long waited = (System.nanoTime() - start) / 1000000;
+			assertTrue(waited >= 900 && waited < 5000, "closed after " + waited + " ms");
+			socket.close();
+		}
+		finally {
+			daemon.close();
+			thread.join();
+			new File(System.getProperty("robot.daemon.token")).delete();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// Segment indexes of a firmware upload many times longer than the 16 bit ackNum space go through the
+// scoreboard's slots as FirmwareSender drives it: cumulative acks unwrapped from the window start
+class ScoreboardTest {
+
+	private static final int SEGMENTS = 3000; // 765000 bytes, almost twelve wraps of ackNum
+	private static final int WINDOW = 2048 / 255;
+	private static final int RTO = 100; // ms
+	private static final long MS = 1000000;
+
+	@Test
+	void tracksCumulativeAcksAndTimersAcrossAckNumWraps() {
+		Random random = new Random(4);
+		Scoreboard board = new Scoreboard();
+		TransferMetrics metrics = new TransferMetrics("firmware", "test");
+		int[] expired = new int[Scoreboard.SLOTS];
+		long now = 1000 * MS;
+		int windowStart = 0; // Bytes acked
+		int round = 0;
+
+		while(board.first() < SEGMENTS) {
+			for (int i = board.next(); i < board.first() + WINDOW && i < SEGMENTS; i++) board.sent(i, now, RTO);
+			now += MS;
+
+			if(++round % 50 == 0) {
+				// Nothing acked for longer than RTO: exactly the segments in flight expire, by index not slot
+				now += 2 * RTO * MS;
+				int count = board.expired(now, expired);
+				int[] indexes = Arrays.copyOf(expired, count);
+				Arrays.sort(indexes);
+
+				assertEquals(board.next() - board.first(), count);
+				for (int i = 0; i < count; i++) assertEquals(board.first() + i, indexes[i]);
+				for (int index : indexes) board.sent(index, now, RTO);
+				continue;
+			}
+
+			int acked = board.first() + 1 + random.nextInt(board.next() - board.first());
+			long ack = SerialNumber.unwrap(windowStart, (char) (acked * 255));
+			assertEquals(acked * 255L, ack);
+
+			board.ack((int) (ack / 255), now, metrics);
+			assertEquals(acked, board.first());
+			assertTrue(board.nextDeadline() == Long.MAX_VALUE || board.next() > board.first());
+			windowStart = (int) ack;
+		}
+
+		assertEquals(SEGMENTS, board.next());
+		assertEquals(Long.MAX_VALUE, board.nextDeadline());
+	}
+
+}
@@ -0,0 +1,59 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+// Property tests of serial number unwrapping with seeded random streams, so failures repeat
+class SerialNumberTest {
+
+	private static final int CASES = 200000;
+	private static final int REACH = 32767; // Farthest a serial may be from its reference either way
+
+	@Test
+	void unwrapsAnyOffsetWithinReachOfRandomReferences() {
+		Random random = new Random(1);
+
+		for (int i = 0; i < CASES; i++) {
+			long reference = random.nextLong() >>> 24; // Up to 2^40, thousands of wraps
+			long offset = reference + random.nextInt(2 * REACH + 1) - REACH;
+
+			assertEquals(offset, SerialNumber.unwrap(reference, (int) (offset & 0xFFFF)), "reference " + reference);
+		}
+	}
+
+	@Test
+	void followsStreamOverManyWraps() {
+		Random random = new Random(2);
+		long reference = 0;
+
+		// A window start moving forward by random steps through 500 wraps of the 16 bit number
+		while(reference < 500L * 65536) {
+			long offset = reference + random.nextInt(2 * REACH + 1) - REACH;
+
+			assertEquals(offset, SerialNumber.unwrap(reference, (int) (offset & 0xFFFF)), "reference " + reference);
+			reference += random.nextInt(4096);
+		}
+	}
+
+	@Test
+	void unwrapsAtEveryDistanceAroundWrap() {
+		long reference = 3 * 65536 - 7; // Just before the third wrap
+
+		for (int distance = -REACH; distance <= REACH; distance++) {
+			long offset = reference + distance;
+			assertEquals(offset, SerialNumber.unwrap(reference, (char) offset));
+		}
+	}
+
+	@Test
+	void serialBehindStartGoesNegative() {
+		// A stale ack before the stream start unwraps below zero, so callers see it as old
+		assertEquals(-5, SerialNumber.unwrap(5, 0xFFFB));
+		assertEquals(0, SerialNumber.unwrap(0, 0));
+	}
+}
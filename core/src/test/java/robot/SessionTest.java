@@ -0,0 +1,159 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.function.Executable;
+
+// Sessions that fail give back everything they hold: the bandwidth budget, the partial photo file and
+// the connection, and are counted as failed. Baryk resets every transfer
+@Timeout(10)
+class SessionTest {
+
+	@Test
+	void abortLeavesBudgetAndClosesConnection() throws IOException, InterruptedException {
+		Baryk baryk = new Baryk(true);
+		int active = TokenBucket.SHARED.active();
+
+		try {
+			Connection connection = new Connection("127.0.0.1:" + baryk.port());
+			connection.init(Robot.UPLOAD);
+			FirmwareSender sender = new FirmwareSender(connection, image().getPath());
+
+			sender.start();
+			assertEquals(active + 1, TokenBucket.SHARED.active());
+
+			sender.abort("Test");
+			sender.abort("Again"); // Nothing more to give back
+			assertEquals(active, TokenBucket.SHARED.active());
+			assertTrue(sender.isDone() && sender.failed());
+			assertEquals(1, connection.metrics.getFailures());
+			assertFalse(connection.channel.isOpen());
+		}
+		finally {
+			baryk.close();
+		}
+	}
+
+	@Test
+	void abortDeletesPartialPhoto() throws IOException, InterruptedException {
+		RobotSimulator simulator = new RobotSimulator(0, RobotSimulator.randomPhoto(20000, 10), new Impairment(), ".");
+		Thread thread = new Thread(simulator, "simulator");
+		File file = File.createTempFile("photo", ".png");
+
+		thread.start();
+		try {
+			Connection connection = new Connection("127.0.0.1:" + simulator.port());
+			connection.init(Robot.DOWNLOAD);
+			PhotoClient client = new PhotoClient(connection, file.getPath());
+
+			client.start();
+			client.receive(connection.receive(1000));
+			client.abort("Test");
+
+			assertFalse(file.exists(), "partial photo deleted");
+			assertTrue(client.failed());
+			assertFalse(connection.channel.isOpen());
+		}
+		finally {
+			simulator.close();
+			thread.join();
+			file.delete();
+		}
+	}
+
+	@Test
+	void truncatedPhotoFailsAndIsDeleted() throws IOException, InterruptedException {
+		byte[] png = PngValidatorTest.png(3000);
+		RobotSimulator simulator = new RobotSimulator(0, Arrays.copyOf(png, png.length - 12), new Impairment(), "."); // No IEND
+		Thread thread = new Thread(simulator, "simulator");
+		File file = File.createTempFile("photo", ".png");
+
+		thread.start();
+		try {
+			Connection connection = new Connection("127.0.0.1:" + simulator.port());
+			final PhotoClient client = new PhotoClient(connection, file.getPath());
+
+			connection.init(Robot.DOWNLOAD);
+			assertThrows(StreamCorruptedException.class, new Executable() {
+				public void execute() throws Throwable {
+					client.run();
+				}
+			});
+			assertTrue(client.failed());
+			assertFalse(file.exists(), "truncated photo deleted");
+			assertEquals(1, connection.metrics.getFailures());
+		}
+		finally {
+			Lingerer.drain();
+			simulator.close();
+			thread.join();
+			file.delete();
+		}
+	}
+
+	@Test
+	void resetDownloadFailsAndDeletesPartialPhoto() throws IOException, InterruptedException {
+		Baryk baryk = new Baryk(true);
+		File file = File.createTempFile("photo", ".png");
+
+		try {
+			Connection connection = new Connection("127.0.0.1:" + baryk.port());
+			final PhotoClient client = new PhotoClient(connection, file.getPath());
+
+			connection.init(Robot.DOWNLOAD);
+			assertThrows(SocketException.class, new Executable() {
+				public void execute() throws Throwable {
+					client.run();
+				}
+			});
+			assertTrue(client.failed());
+			assertFalse(file.exists(), "partial photo deleted");
+			assertEquals(1, connection.metrics.getFailures());
+		}
+		finally {
+			baryk.close();
+			file.delete();
+		}
+	}
+
+	@Test
+	void resetFleetUploadLeavesBudget() throws IOException, InterruptedException {
+		Baryk baryk = new Baryk(true);
+		int active = TokenBucket.SHARED.active();
+
+		try {
+			FleetScheduler scheduler = new FleetScheduler(new SessionSelector());
+
+			scheduler.firmware("127.0.0.1:" + baryk.port(), image().getPath());
+			scheduler.run();
+
+			assertEquals(1, scheduler.failed());
+			assertEquals(active, TokenBucket.SHARED.active());
+		}
+		finally {
+			baryk.close();
+		}
+	}
+
+	private static File image() throws IOException {
+		File file = File.createTempFile("firmware", ".bin");
+
+		file.deleteOnExit();
+		Files.write(file.toPath(), RobotSimulator.randomPhoto(5000, 11));
+		return file;
+	}
+}
@@ -0,0 +1,55 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+// Budget shared by fleet senders, driven with explicit times so no test waits for the clock
+class TokenBucketTest {
+
+	private static final long SECOND = 1000000000L; // In ns
+
+	@Test
+	void unlimitedGrantsEverything() {
+		TokenBucket bucket = new TokenBucket(0, 0);
+		long now = System.nanoTime();
+
+		assertFalse(bucket.enabled());
+		assertEquals(100000, bucket.grant(255, 100000, now));
+		assertEquals(0, bucket.delay(100000, now));
+	}
+
+	@Test
+	void splitsBurstBetweenSendersAndRefills() {
+		TokenBucket bucket = new TokenBucket(1000, 1000); // 1000 B/s, one second of burst
+		long now = System.nanoTime();
+
+		assertTrue(bucket.enabled());
+		bucket.join();
+		bucket.join();
+
+		// Each of two senders gets at most half of the burst at once
+		assertEquals(500, bucket.grant(100, 800, now));
+		assertEquals(500, bucket.grant(100, 800, now));
+		assertEquals(0, bucket.grant(100, 800, now));
+		assertEquals(250 * SECOND / 1000, bucket.delay(250, now));
+
+		// Unsent bytes go back, but not less than min is granted
+		bucket.refund(50);
+		assertEquals(0, bucket.grant(100, 800, now));
+		bucket.refund(150);
+		assertEquals(200, bucket.grant(100, 800, now));
+
+		// A quarter second brings 250 bytes, a whole burst interval fills the bucket
+		assertEquals(250, bucket.grant(100, 800, now + SECOND / 4));
+		assertEquals(0, bucket.delay(1000, now + 2 * SECOND));
+
+		// A lone sender may take the whole burst
+		bucket.leave();
+		assertEquals(800, bucket.grant(100, 800, now + 2 * SECOND));
+	}
+}
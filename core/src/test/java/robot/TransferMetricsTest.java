@@ -0,0 +1,46 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+// Finished sessions keep the percentiles of their histograms and strings in the JSON are escaped
+class TransferMetricsTest {
+
+	@Test
+	void compactedHistogramKeepsPercentiles() {
+		Histogram histogram = new Histogram();
+
+		for (int i = 1; i <= 1000; i++) histogram.record(i);
+		String json = histogram.toJson();
+		long p90 = histogram.percentile(90);
+
+		histogram.compact();
+		assertEquals(json, histogram.toJson());
+		assertEquals(p90, histogram.percentile(90));
+
+		histogram.record(5000);
+		assertEquals(1001, histogram.count());
+		assertEquals(5000, histogram.max());
+		assertEquals(p90, histogram.percentile(90));
+	}
+
+	@Test
+	void finishedSessionJsonIsEscaped() {
+		TransferMetrics metrics = new TransferMetrics("photo", "robot\"1\\\n");
+
+		metrics.started(1000);
+		for (int i = 1; i <= 100; i++) metrics.rtt(i * 10);
+		metrics.failed("Bad \"photo\"");
+		metrics.finished(2000000);
+
+		String json = metrics.toJson();
+		assertTrue(json.contains("\"host\": \"robot\\\"1\\\\\\u000a\""), json);
+		assertTrue(json.contains("\"failure\": \"Bad \\\"photo\\\"\""), json);
+		assertTrue(json.contains("\"rttMicros\": {\"count\": 100, \"mean\": 505, \"p50\": 511, "), json);
+		assertEquals("null", TransferMetrics.quote(null));
+	}
+}
@@ -0,0 +1,78 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Resolved robot addresses kept for -Drobot.dns.ttl seconds (default 60), so opening a session
+// does not wait for the resolver every time. Safe to use from any thread
+class AddressCache {
+
+	public static final long TTL = Long.getLong("robot.dns.ttl", 60) * 1000000000L; // In ns
+
+	private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+	// All addresses of host, host:port, IPv6 literal or [IPv6 literal]:port, port defaults to Connection.PORT
+	public static InetSocketAddress[] resolve(String host) throws UnknownHostException {
+		long now = System.nanoTime();
+		Entry entry = cache.get(host);
+
+		if(entry != null && now - entry.resolvedAt < TTL) return entry.addresses;
+
+		int port = Connection.PORT;
+		String name = host;
+		int colon = host.lastIndexOf(':');
+
+		if(host.startsWith("[")) {
+			int close = host.indexOf(']');
+			if(close < 0 || (close + 1 < host.length() && host.charAt(close + 1) != ':')) throw new UnknownHostException("Bad address " + host);
+			if(close + 1 < host.length()) port = port(host, host.substring(close + 2));
+			name = host.substring(1, close);
+		}
+		else if(colon > 0 && host.indexOf(':') == colon) {
+			port = port(host, host.substring(colon + 1));
+			name = host.substring(0, colon);
+		}
+
+		InetAddress[] resolved = InetAddress.getAllByName(name);
+		InetSocketAddress[] addresses = new InetSocketAddress[resolved.length];
+		for (int i = 0; i < resolved.length; i++) {
+			addresses[i] = new InetSocketAddress(resolved[i], port);
+		}
+
+		cache.put(host, new Entry(addresses, now));
+		return addresses;
+	}
+
+	// Port number after the colon of host, 1 to 65535
+	private static int port(String host, String number) throws UnknownHostException {
+		int port;
+
+		try {
+			port = Integer.parseInt(number);
+		}
+		catch(NumberFormatException e) {
+			port = -1;
+		}
+		if(port < 1 || port > 0xFFFF) throw new UnknownHostException("Bad port in " + host);
+		return port;
+	}
+
+	// Forget host, the next resolve asks the resolver again
+	public static void invalidate(String host) {
+		cache.remove(host);
+	}
+
+	private static class Entry {
+		InetSocketAddress[] addresses;
+		long resolvedAt; // In ns
+
+		Entry(InetSocketAddress[] addresses, long resolvedAt) {
+			this.addresses = addresses;
+			this.resolvedAt = resolvedAt;
+		}
+	}
+}
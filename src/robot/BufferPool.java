@@ -0,0 +1,40 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.nio.ByteBuffer;
+
+// Recycles fixed size datagram buffers, not thread safe
+class BufferPool {
+
+	private ByteBuffer[] free = new ByteBuffer[16]; // Buffers ready for reuse
+	private int count = 0; // Number of buffers in free
+	private int capacity; // Size of one buffer
+
+	public BufferPool(int capacity) {
+		this.capacity = capacity;
+	}
+
+	// Get a cleared buffer, allocating only when the pool is empty
+	public ByteBuffer acquire() {
+
+		if(this.count == 0) return ByteBuffer.allocate(this.capacity);
+
+		ByteBuffer buffer = this.free[--this.count];
+		this.free[this.count] = null;
+		buffer.clear();
+		return buffer;
+	}
+
+	// Return buffer to the pool
+	public void release(ByteBuffer buffer) {
+
+		if(this.count == this.free.length) {
+			ByteBuffer[] grown = new ByteBuffer[this.free.length * 2];
+			System.arraycopy(this.free, 0, grown, 0, this.count);
+			this.free = grown;
+		}
+
+		this.free[this.count++] = buffer;
+	}
+}
@@ -0,0 +1,392 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+// Plays the first session of a PacketCapture back against PhotoClient or FirmwareSender in virtual time.
+// Datagrams from baryk arrive at their recorded times whatever the current code sends, timeouts fire when
+// virtual time passes them plus the timer slack of a real receive. Prints what the session sent in the field next to what the current code sends,
+// the first datagram where they differ and how fast the capture replays.
+//
+// java -Drobot.log=off -cp core/target/classes robot.CaptureReplay [-repeat 20] [-slack 2000] [-firmware <file>] capture.bin
+public class CaptureReplay {
+
+	private static final int SYN = 4; // SYN flag
+	private static final int FIN = 2; // FIN flag
+	private static final int RST = 1; // RST flag
+	private static final long NONE = Long.MAX_VALUE; // No timeout armed
+	private static final long SILENCE = 60000000000L; // Virtual ns a session may run on after the last record
+
+	// Photo data are only counted, the replay does not keep them
+	private static final WritableByteChannel SINK = new WritableByteChannel() {
+		public int write(ByteBuffer src) {
+			int length = src.remaining();
+			src.position(src.limit());
+			return length;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {}
+	};
+
+	private ByteBuffer file; // Whole capture
+	private int count = 0; // Records in the capture
+	private long[] times = new long[1024]; // Record times in ns
+	private byte[] directions = new byte[1024]; // PacketLog.SEND or PacketLog.RCVD
+	private int[] offsets = new int[1024]; // Position of the datagram of every record in file
+	private int[] lengths = new int[1024]; // Datagram lengths
+	private int syn = -1; // Record of our first SYN
+	private int established = -1; // Record of the SYN from baryk
+	private byte command; // Command of the replayed session
+	private int conNum; // Connection number of the replayed session
+	private FirmwareImage firmware; // Image for an upload, rebuilt from the capture unless given
+	private Decisions replayed; // What the current code sent in the last replay
+	private long slack = 2000000; // ns a timeout fires late, a blocking receive rounds up to ms and wakes late
+
+	public static void main(String[] args) throws IOException {
+		if(args.length == 0) {
+			System.out.println("Usage: java robot.CaptureReplay [-repeat <n>] [-slack <us>] [-firmware <file>] <capture>");
+			return;
+		}
+
+		CaptureReplay replay = new CaptureReplay(args[args.length - 1]);
+		int repeat = 1;
+		String firmware = null;
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if(args[i].equals("-repeat")) repeat = Integer.parseInt(args[i + 1]);
+			else if(args[i].equals("-slack")) replay.slack = Long.parseLong(args[i + 1]) * 1000;
+			else if(args[i].equals("-firmware")) firmware = args[i + 1];
+		}
+
+		if(replay.established < 0) {
+			System.out.println("No handshake in the capture.");
+			return;
+		}
+		if(replay.command == Robot.UPLOAD[0]) replay.firmware = firmware != null ? new FirmwareImage(firmware) : replay.rebuildFirmware();
+
+		long best = Long.MAX_VALUE;
+		long end = -1;
+		for (int i = 0; i < repeat; i++) {
+			long start = System.nanoTime();
+			end = replay.replay();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		replay.report(end, best);
+	}
+
+	public CaptureReplay(String filename) throws IOException {
+		FileInputStream in = new FileInputStream(filename);
+		FileChannel channel = in.getChannel();
+		this.file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		in.close();
+
+		if(this.file.remaining() < PacketCapture.HEADER_LENGTH || this.file.getInt() != PacketCapture.MAGIC) {
+			throw new IOException("Not a packet capture: " + filename);
+		}
+		this.file.position(PacketCapture.HEADER_LENGTH);
+
+		while(this.file.remaining() >= PacketCapture.RECORD_HEADER) {
+			long time = this.file.getLong();
+			byte direction = this.file.get();
+			int length = this.file.getChar();
+
+			if(this.file.remaining() < length) break; // Capture cut short
+
+			if(this.count == this.times.length) grow();
+			this.times[this.count] = time;
+			this.directions[this.count] = direction;
+			this.offsets[this.count] = this.file.position();
+			this.lengths[this.count] = length;
+			this.file.position(this.file.position() + length);
+			findSession(this.count++);
+		}
+	}
+
+	// Pick the first SYN we sent and the answer of baryk to it
+	private void findSession(int record) {
+		int offset = this.offsets[record];
+
+		if(this.lengths[record] <= PhotoPacket.HEADER_LENGTH || (this.file.get(offset + 8) & 0xFF) != SYN) return;
+
+		if(this.syn < 0 && this.directions[record] == PacketLog.SEND) {
+			this.syn = record;
+			this.command = this.file.get(offset + PhotoPacket.HEADER_LENGTH);
+		}
+		else if(this.syn >= 0 && this.established < 0 && this.directions[record] == PacketLog.RCVD
+				&& this.file.get(offset + PhotoPacket.HEADER_LENGTH) == this.command) {
+			this.established = record;
+			this.conNum = this.file.getInt(offset);
+		}
+	}
+
+	private void grow() {
+		int capacity = this.times.length * 2;
+		this.times = Arrays.copyOf(this.times, capacity);
+		this.directions = Arrays.copyOf(this.directions, capacity);
+		this.offsets = Arrays.copyOf(this.offsets, capacity);
+		this.lengths = Arrays.copyOf(this.lengths, capacity);
+	}
+
+	// Record belongs to the replayed session
+	private boolean ours(int record) {
+		return this.lengths[record] >= PhotoPacket.HEADER_LENGTH && this.file.getInt(this.offsets[record]) == this.conNum;
+	}
+
+	// Play the session back once, return the virtual time it finished at or -1 if it did not
+	long replay() throws IOException {
+		BufferPool pool = new BufferPool(PhotoPacket.MAX_LENGTH);
+		Clock.Virtual clock = new Clock.Virtual();
+		Connection connection = new Connection(this, clock, pool);
+		PhotoPacket ppacket = new PhotoPacket();
+		Session session;
+
+		this.replayed = new Decisions();
+		clock.set(this.times[this.syn]);
+		connection.sendSyn(connection.synPacket(new byte[] {this.command}), false);
+		if(this.command == Robot.DOWNLOAD[0]) session = new PhotoClient(connection, SINK);
+		else session = new FirmwareSender(connection, this.firmware);
+
+		clock.set(this.times[this.established]);
+		connection.established(this.conNum);
+		clock.set(startedAt());
+		session.start();
+		long deadline = rearm(session, clock.nanoTime());
+
+		for (int i = this.established + 1; i < this.count && !session.isDone(); i++) {
+			if(this.directions[i] != PacketLog.RCVD || !ours(i)) continue;
+
+			deadline = fire(session, clock, deadline, this.times[i]);
+			if(session.isDone()) break;
+
+			clock.set(this.times[i]);
+			ByteBuffer buffer = pool.acquire();
+			buffer.clear();
+			for (int j = 0; j < this.lengths[i]; j++) {
+				buffer.put(this.file.get(this.offsets[i] + j));
+			}
+			buffer.flip();
+
+			connection.metrics.received(buffer.limit());
+			session.receive(ppacket.wrap(buffer, pool));
+			ppacket.recycle();
+			// Later datagrams were not queued yet, the socket was drained here
+			if(nextArrival(i) > this.times[i]) session.drained();
+			deadline = rearm(session, this.times[i]);
+		}
+
+		// Baryk fell silent, let the session time out as it would
+		fire(session, clock, deadline, this.times[this.count - 1] + SILENCE);
+
+		return session.isDone() ? clock.nanoTime() : -1;
+	}
+
+	// Time the session started after the handshake, its first datagram if it sent one before anything
+	// arrived. Covers the time a cold JVM takes to get the first window out
+	private long startedAt() {
+
+		for (int i = this.established + 1; i < this.count; i++) {
+			if(!ours(i)) continue;
+			return this.directions[i] == PacketLog.SEND ? this.times[i] : this.times[this.established];
+		}
+		return this.times[this.established];
+	}
+
+	// Fire timeouts of session due until, return the next deadline. A datagram arriving within the slack
+	// after a deadline is taken first, as the blocking receive would have found it queued
+	private long fire(Session session, Clock.Virtual clock, long deadline, long until) throws IOException {
+
+		while(deadline != NONE && deadline + this.slack <= until && !session.isDone()) {
+			clock.set(deadline);
+			session.timeout();
+			deadline = rearm(session, deadline);
+		}
+		return deadline;
+	}
+
+	private static long rearm(Session session, long now) {
+		int timeout = session.receiveTimeout();
+
+		return timeout > 0 ? now + timeout * 1000000L : NONE;
+	}
+
+	// Time of the next datagram received after record
+	private long nextArrival(int record) {
+
+		for (int i = record + 1; i < this.count; i++) {
+			if(this.directions[i] == PacketLog.RCVD && ours(i)) return this.times[i];
+		}
+		return NONE;
+	}
+
+	// Called by the replay Connection for every datagram the session sends
+	void sent(ByteBuffer frame) {
+		this.replayed.add(frame);
+	}
+
+	// Firmware as far as the capture carries it
+	private FirmwareImage rebuildFirmware() throws IOException {
+		byte[] image = new byte[1 << 16];
+		int length = 0;
+		long highest = 0;
+
+		for (int i = this.established + 1; i < this.count; i++) {
+			int data = this.lengths[i] - PhotoPacket.HEADER_LENGTH;
+			if(this.directions[i] != PacketLog.SEND || !ours(i) || data <= 0) continue;
+
+			long offset = SerialNumber.unwrap(highest, this.file.getChar(this.offsets[i] + 4));
+			if(offset < 0) continue;
+			highest = Math.max(highest, offset);
+			while(offset + data > image.length) image = Arrays.copyOf(image, image.length * 2);
+			for (int j = 0; j < data; j++) {
+				image[(int) offset + j] = this.file.get(this.offsets[i] + PhotoPacket.HEADER_LENGTH + j);
+			}
+			length = Math.max(length, (int) offset + data);
+		}
+
+		File rebuilt = File.createTempFile("replay-firmware", ".bin");
+		rebuilt.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(rebuilt);
+		out.write(image, 0, length);
+		out.close();
+		return new FirmwareImage(rebuilt.getPath());
+	}
+
+	// Index of the first datagram the last replay sent differently from the capture, -1 if it sent the same
+	int divergence() {
+		return recorded().divergence(this.replayed);
+	}
+
+	// What the session sent in the field after the handshake
+	private Decisions recorded() {
+		Decisions recorded = new Decisions();
+
+		for (int i = this.established + 1; i < this.count; i++) {
+			if(!ours(i) || this.directions[i] != PacketLog.SEND) continue;
+			recorded.add((ByteBuffer) this.file.duplicate().position(this.offsets[i]).limit(this.offsets[i] + this.lengths[i]));
+		}
+		return recorded;
+	}
+
+	// Print recorded and replayed decisions side by side
+	private void report(long end, long wall) {
+		Decisions recorded = recorded();
+		long last = this.times[this.established];
+		int received = 0;
+
+		for (int i = this.established + 1; i < this.count; i++) {
+			if(!ours(i)) continue;
+			last = this.times[i];
+			if(this.directions[i] == PacketLog.RCVD) received++;
+		}
+
+		System.out.println((this.command == Robot.DOWNLOAD[0] ? "Photo" : "Firmware") + " session "
+				+ Integer.toHexString(this.conNum) + ", " + received + " datagrams from baryk");
+		System.out.println(String.format("%-16s%12s%12s", "", "recorded", "replayed"));
+		row("datagrams", recorded.datagrams, this.replayed.datagrams);
+		row("bytes", recorded.bytes, this.replayed.bytes);
+		row("acks", recorded.acks, this.replayed.acks);
+		row("duplicateAcks", recorded.duplicateAcks, this.replayed.duplicateAcks);
+		row("data", recorded.data, this.replayed.data);
+		row("retransmits", recorded.retransmits, this.replayed.retransmits);
+		row("fins", recorded.fins, this.replayed.fins);
+		row("resets", recorded.resets, this.replayed.resets);
+		System.out.println(String.format("%-16s%12d%12s", "durationMillis", (last - this.times[this.syn]) / 1000000,
+				end < 0 ? "unfinished" : String.valueOf((end - this.times[this.syn]) / 1000000)));
+
+		int divergence = recorded.divergence(this.replayed);
+		if(divergence < 0) System.out.println("Same datagrams sent.");
+		else {
+			System.out.println("First difference at datagram " + divergence + ":");
+			System.out.println("  recorded: " + recorded.describe(divergence));
+			System.out.println("  replayed: " + this.replayed.describe(divergence));
+		}
+
+		long events = received + this.replayed.datagrams;
+		System.out.println("Replay took " + wall / 1000 + " us, " + (wall > 0 ? events * 1000000000L / wall : 0) + " datagrams/s");
+	}
+
+	private static void row(String name, long recorded, long replayed) {
+		System.out.println(String.format("%-16s%12d%12d", name, recorded, replayed));
+	}
+
+	// What a session sent after its SYN
+	private static class Decisions {
+		int datagrams = 0;
+		long bytes = 0;
+		int acks = 0; // Header only datagrams
+		int duplicateAcks = 0; // Acks repeating the previous ackNum
+		int data = 0; // Datagrams carrying data
+		int retransmits = 0; // Data at an offset sent before
+		int fins = 0;
+		int resets = 0;
+		private long highest = -1; // Highest data offset sent
+		private int lastAck = -1; // ackNum of the previous ack
+		private long[] headers = new long[1024]; // conNum, seqNum and ackNum of every datagram
+		private byte[] signs = new byte[1024];
+		private short[] lengths = new short[1024];
+
+		void add(ByteBuffer frame) {
+			int base = frame.position();
+			int length = frame.limit() - base;
+			int flags = frame.get(base + 8) & 0xFF;
+
+			if(flags == SYN) return;
+
+			if(this.datagrams == this.headers.length) {
+				this.headers = Arrays.copyOf(this.headers, this.datagrams * 2);
+				this.signs = Arrays.copyOf(this.signs, this.datagrams * 2);
+				this.lengths = Arrays.copyOf(this.lengths, this.datagrams * 2);
+			}
+			this.headers[this.datagrams] = frame.getLong(base);
+			this.signs[this.datagrams] = (byte) flags;
+			this.lengths[this.datagrams] = (short) length;
+			this.datagrams++;
+			this.bytes += length;
+
+			if(flags == FIN) this.fins++;
+			else if(flags == RST) this.resets++;
+			else if(length == PhotoPacket.HEADER_LENGTH) {
+				int ack = frame.getChar(base + 6);
+				if(ack == this.lastAck) this.duplicateAcks++;
+				this.lastAck = ack;
+				this.acks++;
+			}
+			else {
+				long offset = SerialNumber.unwrap(Math.max(0, this.highest), frame.getChar(base + 4));
+				if(offset <= this.highest) this.retransmits++;
+				else this.highest = offset;
+				this.data++;
+			}
+		}
+
+		// Index of the first datagram different from other, -1 if they sent the same
+		int divergence(Decisions other) {
+
+			for (int i = 0; i < Math.min(this.datagrams, other.datagrams); i++) {
+				if(this.headers[i] != other.headers[i] || this.signs[i] != other.signs[i] || this.lengths[i] != other.lengths[i]) return i;
+			}
+			return this.datagrams == other.datagrams ? -1 : Math.min(this.datagrams, other.datagrams);
+		}
+
+		String describe(int index) {
+			if(index >= this.datagrams) return "nothing";
+
+			long header = this.headers[index];
+			return PhotoPacket.describe((int) (header >>> 32), (int) (header >>> 16) & 0xFFFF, (int) header & 0xFFFF,
+					this.signs[index] & 0xFF, this.lengths[index] - PhotoPacket.HEADER_LENGTH);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// SHA-256 of photos and firmware images, hashed as the data pass through
+final class Checksum {
+
+	private Checksum() {}
+
+	// Fresh SHA-256 digest, every JVM has one
+	public static MessageDigest sha256() {
+
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Finish digest as a hex string
+	public static String hex(MessageDigest digest) {
+		return PhotoPacket.bytesToHex(digest.digest()).toLowerCase();
+	}
+}
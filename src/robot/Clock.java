@@ -0,0 +1,27 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// Time source of the session logic. Connections use REAL, CaptureReplay gives its connection a Virtual
+// clock so timers and RTT samples follow the recorded traffic while other sessions keep real time
+class Clock {
+
+	public static final Clock REAL = new Clock(); // System.nanoTime
+
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	// Time moved by hand, owned by one replay thread
+	static class Virtual extends Clock {
+		private long now; // Virtual time in ns
+
+		public long nanoTime() {
+			return this.now;
+		}
+
+		public void set(long nanos) {
+			this.now = nanos;
+		}
+	}
+}
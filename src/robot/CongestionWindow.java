@@ -0,0 +1,63 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// AIMD congestion window of FirmwareSender in segments, capped by the 2048 byte protocol window.
+// Below the threshold it grows by a segment per acked segment, above it by a segment per window
+// of acks. Triple duplicate acks halve it, a timeout drops it to one segment
+class CongestionWindow {
+
+	public static final int MAX = 2048 / 255; // Segments fitting the protocol window
+	public static final int INITIAL = Math.max(1, Math.min(MAX, Integer.getInteger("robot.cwnd.initial", MAX)));
+
+	private int cwnd = INITIAL; // Segments allowed in flight
+	private int ssthresh = MAX; // Slow start threshold in segments
+	private int acked = 0; // Segments acked since the window last grew above the threshold
+	private TransferMetrics metrics;
+
+	public CongestionWindow(TransferMetrics metrics) {
+		this.metrics = metrics;
+		metrics.cwnd(this.cwnd, false);
+	}
+
+	// Cumulative ack moved by segments
+	public void acked(int segments) {
+		if(this.cwnd == MAX) return;
+
+		if(this.cwnd < this.ssthresh) this.cwnd = Math.min(this.ssthresh, this.cwnd + segments);
+		else {
+			this.acked += segments;
+			if(this.acked >= this.cwnd) {
+				this.acked -= this.cwnd;
+				this.cwnd++;
+			}
+		}
+
+		this.cwnd = Math.min(MAX, this.cwnd);
+		this.metrics.cwnd(this.cwnd, false);
+	}
+
+	// Third duplicate ack, a segment was lost but later ones get through
+	public void loss() {
+		this.ssthresh = Math.max(2, this.cwnd / 2);
+		this.cwnd = this.ssthresh;
+		this.acked = 0;
+		this.metrics.cwnd(this.cwnd, true);
+	}
+
+	// Retransmission timer expired, nothing is getting through
+	public void timeout() {
+		this.ssthresh = Math.max(2, this.cwnd / 2);
+		this.cwnd = 1;
+		this.acked = 0;
+		this.metrics.cwnd(this.cwnd, true);
+	}
+
+	public int segments() {
+		return this.cwnd;
+	}
+
+	public String toString() {
+		return "CWND: " + this.cwnd + " SSTHRESH: " + this.ssthresh;
+	}
+}
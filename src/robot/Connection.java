@@ -0,0 +1,336 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ThreadLocalRandom;
+
+class Connection {
+	public DatagramChannel channel; // Channel connected to baryk
+	public int conNum;
+	public InetAddress address;
+	public BufferPool pool; // Pool for received datagrams
+	public RtoEstimator rto = new RtoEstimator(); // Retransmission timeout of this session
+	public TransferMetrics metrics; // Counters and latencies of this session
+	public Clock clock = Clock.REAL; // Time of timers and RTT samples
+	public int idleTimeout = IDLE_TIMEOUT; // ms baryk may stay silent before the session fails, 0 waits forever
+	private volatile boolean cancelled = false; // Transfer cancelled by another thread
+	private long synSentAt; // Time the SYN was first sent in ns, 0 once it was retransmitted
+	private boolean shared; // Channel is owned by SessionSelector
+	private boolean lingering = false; // Channel was handed to the Lingerer, which closes it
+	private Selector selector; // Waits for datagrams with timeout in blocking mode
+	private volatile ReceivePipeline pipeline; // Receiver thread feeding received datagrams, null if not pipelined
+	public InetSocketAddress target; // Address and port of baryk
+	private InetSocketAddress[] candidates; // All addresses of baryk, raced during the handshake
+	private SocketAddress source; // Sender of the last received packet
+	private CaptureReplay replay; // Takes sent frames instead of the channel, null unless replaying
+	private ByteBuffer synBuffer = ByteBuffer.allocate(SYN_LENGTH); // SYN packet
+	private ByteBuffer controlBuffer = ByteBuffer.allocate(PhotoPacket.HEADER_LENGTH); // ACK and FIN packets
+	private ByteBuffer dataHeader = ByteBuffer.allocateDirect(PhotoPacket.HEADER_LENGTH); // Header of the data segment being sent
+	private ByteBuffer[] gather = new ByteBuffer[2]; // Header and data of one datagram
+	private PhotoPacket received = new PhotoPacket(); // View of the last received packet
+	private static final int SYN = 4; // SYN flag
+	public static final int PORT = 4000; // port number on baryk
+	private static final int SYN_LENGTH = 10; // syn packet length
+	public static final int SYN_RETRIES = Integer.getInteger("robot.syn.retries", 20); // SYNs sent before giving up
+	public static final int IDLE_TIMEOUT = Integer.getInteger("robot.idle.timeout", 30000); // Default idleTimeout in ms
+
+	public Connection(String host) throws IOException {
+		this(host, new BufferPool(PhotoPacket.MAX_LENGTH));
+	}
+
+	// Create connection receiving into buffers of the given pool, which must not be used by other threads
+	public Connection(String host, BufferPool pool) throws IOException {
+		this.candidates = AddressCache.resolve(host);
+		this.target = this.candidates[0];
+		this.address = this.target.getAddress();
+		this.channel = DatagramChannel.open();
+		this.channel.configureBlocking(false);
+		// With more addresses the channel is connected to the one answering first
+		if(this.candidates.length == 1) this.channel.connect(this.target);
+		this.selector = Selector.open();
+		this.channel.register(this.selector, SelectionKey.OP_READ);
+
+		this.pool = pool;
+		this.metrics = new TransferMetrics(null, host);
+	}
+
+	// Create connection multiplexed over a shared non-blocking channel. Until the channel is connected
+	// SYNs go to every candidate and the owner of the channel calls answeredBy with the winner
+	public Connection(InetSocketAddress[] candidates, DatagramChannel channel, BufferPool pool) throws IOException {
+		this.candidates = candidates;
+		this.target = channel.isConnected() ? (InetSocketAddress) channel.getRemoteAddress() : candidates[0];
+		this.address = this.target.getAddress();
+		this.channel = channel;
+		this.pool = pool;
+		this.shared = true;
+		this.metrics = new TransferMetrics(null, this.address.getHostAddress());
+	}
+
+	// Create connection whose datagrams go to replay instead of the network, timed by the replay clock
+	public Connection(CaptureReplay replay, Clock clock, BufferPool pool) {
+		this.target = new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
+		this.address = this.target.getAddress();
+		this.replay = replay;
+		this.clock = clock;
+		this.idleTimeout = 0; // Baryk falling silent ends the capture, not the session
+		this.pool = pool;
+		this.shared = true; // No channel of its own to pipeline or close
+		this.metrics = new TransferMetrics(null, "replay");
+	}
+
+	// Resolve host or host:port to its first address, port defaults to PORT
+	public static InetSocketAddress resolve(String host) throws UnknownHostException {
+		return AddressCache.resolve(host)[0];
+	}
+
+	// Establish connection with baryk
+	public void init(byte[] command) throws IOException {
+		ByteBuffer syn = synPacket(command);
+
+		// Send packet to baryk
+		sendSyn(syn, false);
+		int attempts = 1;
+
+		while(true) {
+			PhotoPacket ppacket;
+
+			try{
+				ppacket = receive(jitter(this.rto.rto()));
+			}
+			catch(IOException e) {
+				if(this.cancelled) throw e;
+				if(attempts++ == SYN_RETRIES) {
+					close();
+					throw new SocketTimeoutException("No SYN from " + this.target + " after " + SYN_RETRIES + " attempts");
+				}
+
+				this.metrics.timeout();
+				this.rto.backoff();
+				if(Log.DEBUG_ENABLED) Log.debug("Timeout occured. " + this.rto);
+				sendSyn(syn, true);
+				continue;
+			}
+
+			if(ppacket.syn() && ppacket.conNum() != 0) {
+				// Here we received syn and the connection is established
+				established(ppacket.conNum());
+				return;
+			}
+		}
+	}
+
+	// Timeout in ms spread randomly by a quarter either way, so robots are not retried in lockstep
+	public static int jitter(int timeout) {
+		return Math.max(1, timeout - timeout / 4 + ThreadLocalRandom.current().nextInt(timeout / 2 + 1));
+	}
+
+	// Create SYN packet requesting given command
+	public ByteBuffer synPacket(byte[] command) {
+		PhotoPacket.encode(this.synBuffer, 0, 0, 0, SYN).put(command, 0, SYN_LENGTH - PhotoPacket.HEADER_LENGTH).flip();
+		this.metrics.kind = command[0] == 0x01 ? "photo" : "firmware";
+
+		return this.synBuffer;
+	}
+
+	// Send SYN to every address of baryk, only the first one is timed since a reply to a retransmission is ambiguous
+	public void sendSyn(ByteBuffer syn, boolean retransmit) throws IOException {
+		this.synSentAt = retransmit ? 0 : this.clock.nanoTime();
+		this.metrics.started(this.clock.nanoTime());
+
+		if(this.replay != null || this.channel.isConnected()) {
+			send(syn);
+			return;
+		}
+
+		for (InetSocketAddress candidate : this.candidates) {
+			PacketLog.sent(syn);
+			this.metrics.sent(syn.limit());
+			this.channel.send(syn, candidate);
+			syn.rewind();
+		}
+	}
+
+	// SYN from baryk arrived with our connection number
+	public void established(int conNum) throws IOException {
+		long now = this.clock.nanoTime();
+
+		if(!this.shared && !this.channel.isConnected()) {
+			// The address answering first wins the race, later answers are filtered out by the channel
+			this.target = (InetSocketAddress) this.source;
+			this.address = this.target.getAddress();
+			this.channel.connect(this.target);
+			if(Log.DEBUG_ENABLED) Log.debug("Connected to " + this.target);
+		}
+
+		this.conNum = conNum;
+		this.metrics.conNum = conNum;
+		this.metrics.established(now);
+		if(this.synSentAt != 0) {
+			this.rto.sample(now - this.synSentAt);
+			this.metrics.rtt((now - this.synSentAt) / 1000);
+		}
+	}
+
+	// Shared channel got connected to the address of baryk answering first
+	public void answeredBy(InetSocketAddress winner) {
+		this.target = winner;
+		this.address = winner.getAddress();
+	}
+
+	// Send header only packet to baryk
+	public void send(int seqNum, int ackNum, int signs) throws IOException {
+		PhotoPacket.encode(this.controlBuffer, this.conNum, seqNum, ackNum, signs).flip();
+		send(this.controlBuffer);
+	}
+
+	// Send encoded packet, position is left at 0 so the frame can be sent again
+	public void send(ByteBuffer frame) throws IOException {
+		PacketLog.sent(frame);
+		this.metrics.sent(frame.limit());
+		if(this.replay != null) this.replay.sent(frame);
+		else this.channel.send(frame, this.target);
+		frame.rewind();
+	}
+
+	// Send count data segments starting at the given offsets back to back in one loop. Every datagram is
+	// gathered from our header and the segment, which is never copied. Positions are left at 0
+	public void send(int[] offsets, ByteBuffer[] segments, int count) throws IOException {
+
+		for (int i = 0; i < count; i++) {
+			ByteBuffer segment = segments[i];
+			PhotoPacket.encode(this.dataHeader, this.conNum, offsets[i], 0, 0).flip();
+			this.metrics.sent(PhotoPacket.HEADER_LENGTH + segment.remaining());
+
+			if(Log.PACKETS_ENABLED || PacketCapture.ENABLED || this.replay != null || !this.channel.isConnected()) {
+				// Whole frame needed, off the fast path
+				ByteBuffer frame = ByteBuffer.allocate(PhotoPacket.HEADER_LENGTH + segment.remaining());
+				frame.put(this.dataHeader).put(segment).flip();
+				PacketLog.sent(frame);
+				if(this.replay != null) this.replay.sent(frame);
+				else this.channel.send(frame, this.target);
+			} else {
+				this.gather[0] = this.dataHeader;
+				this.gather[1] = segment;
+				this.channel.write(this.gather);
+			}
+
+			segment.rewind();
+			segments[i] = null;
+		}
+	}
+
+	// Receive packet from baryk, blocking mode only. Timeout in ms, 0 waits forever.
+	// The view is valid until the next receive
+	public PhotoPacket receive(int timeout) throws IOException {
+		PhotoPacket ppacket;
+
+		while((ppacket = poll()) == null) {
+			if(this.cancelled) throw new InterruptedIOException("Transfer cancelled");
+
+			if(this.pipeline != null) {
+				if(!this.pipeline.await(timeout)) throw new SocketTimeoutException();
+				continue;
+			}
+
+			int ready = this.selector.select(timeout);
+			this.selector.selectedKeys().clear();
+
+			if(ready == 0 && timeout > 0 && !this.cancelled) throw new SocketTimeoutException();
+		}
+
+		return ppacket;
+	}
+
+	// Receive packet already queued on the channel without waiting, null if there is none.
+	// Blocking mode only, the view is valid until the next receive
+	public PhotoPacket poll() throws IOException {
+		this.received.recycle();
+
+		if(this.pipeline != null) {
+			ByteBuffer buffer = this.pipeline.poll();
+			return buffer == null ? null : this.received.wrap(buffer, this.pool);
+		}
+
+		ByteBuffer buffer = this.pool.acquire();
+
+		do {
+			buffer.clear();
+			if((this.source = this.channel.receive(buffer)) == null) {
+				this.pool.release(buffer);
+				return null;
+			}
+		} while(buffer.position() < PhotoPacket.HEADER_LENGTH); // Too short to carry a header
+
+		buffer.flip();
+		this.received.wrap(buffer, this.pool);
+		PacketLog.received(buffer);
+		this.metrics.received(buffer.limit());
+
+		return this.received;
+	}
+
+	// Receive on a separate thread from now on, blocking mode only
+	public void pipeline(int depth) {
+		if(this.shared || this.pipeline != null) return;
+
+		this.pipeline = new ReceivePipeline(this.channel, this.conNum, this.selector, depth, this.metrics);
+		this.pool = this.pipeline.pool();
+		this.pipeline.start();
+	}
+
+	// Session is done and sent its FIN once, the lingerer repeats it and releases the channel
+	public void linger(int seqNum, int ackNum, boolean initiator) throws IOException {
+		if(this.replay != null) return; // Nothing to tear down in a replay
+
+		if(this.pipeline != null) {
+			this.pipeline.stop();
+			this.pipeline = null;
+		}
+		this.lingering = true;
+		Lingerer.get().add(this, seqNum, ackNum, initiator);
+	}
+
+	// Cancel the transfer from another thread, a receive waiting now or later throws InterruptedIOException
+	// and the session aborts on its own thread. Blocking mode only
+	public void cancel() {
+		this.cancelled = true;
+
+		ReceivePipeline pipeline = this.pipeline;
+		if(pipeline != null) pipeline.cancel();
+		if(this.selector != null) this.selector.wakeup();
+	}
+
+	// Session failed or ended, close the channel unless the lingerer took it over
+	public void discard() {
+		if(this.lingering) return;
+
+		try {
+			close();
+		}
+		catch(IOException e) {}
+	}
+
+	public boolean isShared() {
+		return this.shared;
+	}
+
+	// Release the channel unless it is shared
+	public void close() throws IOException {
+		if(this.shared) return;
+
+		if(this.pipeline != null) this.pipeline.stop();
+		this.selector.close();
+		this.channel.close();
+	}
+}
@@ -0,0 +1,78 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Firmware binary mapped into memory and cut into segments. The segments are slices of the mapping, shared by
+// every connection sending the image, which puts its own header in front of them when sending
+class FirmwareImage {
+
+	public static final int SEGMENT = 255; // Data bytes in one frame
+
+	private static final ConcurrentHashMap<String, String> checksums = new ConcurrentHashMap<String, String>(); // SHA-256 by file version
+
+	private MappedByteBuffer image; // Firmware file contents
+	private ByteBuffer[] segments; // Slice of the mapping for every segment, position left at 0 after use
+	private int length; // Firmware length in bytes
+	private String version; // Path, length and modification time, the key of the cached checksum
+	private String checksum; // SHA-256 of the image, null until asked for
+
+	public FirmwareImage(String filename) throws IOException {
+		FileInputStream fws = new FileInputStream(filename);
+		File file = new File(filename);
+		this.version = file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+
+		try {
+			FileChannel channel = fws.getChannel();
+			this.image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			fws.close(); // The mapping stays valid
+		}
+
+		this.length = this.image.capacity();
+		this.segments = new ByteBuffer[(this.length + SEGMENT - 1) / SEGMENT];
+
+		ByteBuffer source = this.image.duplicate();
+		for (int i = 0; i < this.segments.length; i++) {
+			int offset = i * SEGMENT;
+			source.limit(offset + Math.min(SEGMENT, this.length - offset)).position(offset);
+			this.segments[i] = source.slice();
+		}
+	}
+
+	// Firmware length in bytes
+	public int length() {
+		return this.length;
+	}
+
+	// SHA-256 of the image, hashed once per version of the file and shared by every upload of it
+	public String checksum() {
+
+		if(this.checksum == null) {
+			String cached = checksums.get(this.version);
+
+			if(cached == null) {
+				MessageDigest digest = Checksum.sha256();
+				digest.update(this.image.duplicate());
+				cached = Checksum.hex(digest);
+				checksums.put(this.version, cached);
+			}
+			this.checksum = cached;
+		}
+		return this.checksum;
+	}
+
+	// Data from offset, offset is a multiple of SEGMENT. Sessions sharing the image must send from one thread
+	public ByteBuffer segment(int offset) {
+		return this.segments[offset / SEGMENT];
+	}
+}
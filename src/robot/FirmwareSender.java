@@ -0,0 +1,266 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+class FirmwareSender extends Session {
+	
+	private FirmwareImage image; // Mapped firmware cut into segments
+	private int length; // Firmware length in bytes
+	private int segments; // Number of data segments
+	private int windowStart; // First seq in current window, last cumulative ack
+	private int dupAcks = 0; // Number of duplicates of the last ack
+	private int curAck = -1; // Current ack
+	private boolean confirmed = false; // Baryk acknowledged the whole image
+	private Scoreboard board = new Scoreboard(); // Segments in flight
+	private int[] expired = new int[Scoreboard.SLOTS]; // Segments whose timers expired
+	private int[] queue = new int[QUEUE]; // Segments waiting to be sent, ring
+	private int queueHead = 0; // Oldest queued segment
+	private int queueSize = 0; // Number of queued segments
+	private int queuedNext = 0; // Segment after the newest one queued
+	private int resend = 0; // Next segment lost to a timeout to resend as the window opens
+	private int resendEnd = 0; // Segment after the last one lost to a timeout
+	private ByteBuffer[] batch = new ByteBuffer[QUEUE]; // Segments leaving in one send loop
+	private int[] offsets = new int[QUEUE]; // Their offsets
+	private Pacer pacer = new Pacer(); // Spaces frames when pacing is on
+	private TokenBucket budget = TokenBucket.SHARED; // Bandwidth shared with the other sessions
+	private boolean joined = false; // Counted by the budget as an active sender
+	private CongestionWindow cwnd; // Segments allowed in flight
+	
+	private static final int SYN = 4; // SYN flag
+	private static final int FIN = 2; // FIN flag
+	private static final int RST = 1	; // RST flag
+	private static final short WIDTH = 2048; // width of a sliding window
+	private static final int DUP_ACKS = 3; // Duplicate acks triggering fast retransmit
+	private static final int QUEUE = 32; // Power of two, a window and a retransmission of it
+	private static final int DATA_LENGTH = 264; // length od a data packet
+	private static final int FIN_LENGTH = 9; // length of a fin packet
+	
+	public FirmwareSender(Connection connection, String filename) throws IOException {
+		this(connection, new FirmwareImage(filename));
+	}
+
+	public FirmwareSender(Connection connection, FirmwareImage image) {
+		this.connection = connection;
+		this.cwnd = new CongestionWindow(connection.metrics);
+		this.image = image;
+		this.length = this.image.length();
+		this.segments = (this.length + 254) / 255;
+		connection.metrics.sha256 = image.checksum();
+		Log.info("FILE SIZE: " + this.length + " SHA-256: " + connection.metrics.sha256);
+
+		this.windowStart = 0;
+	}
+	
+	public void run() throws IOException {
+
+		try {
+			start();
+
+			while(!isDone()) {
+				PhotoPacket ppacket;
+
+				// Receive new packet
+				try {
+					ppacket = connection.receive(receiveTimeout());
+				}
+				catch(SocketTimeoutException e) {
+					timeout();
+					continue;
+				}
+
+				receive(ppacket);
+			}
+		}
+		catch(IOException e) {
+			abort(e.getMessage());
+			throw e;
+		}
+	}
+
+	// Send the first window right after SYN
+	void start() throws IOException {
+		// A replay in virtual time must not draw on the budget of real sessions
+		if(connection.clock != Clock.REAL) this.budget = new TokenBucket(TokenBucket.RATE, TokenBucket.BURST, connection.clock.nanoTime());
+		this.budget.join();
+		this.joined = true;
+		heard(); // SYN
+		fillWindow();
+	}
+
+	// Leave the budget to the other sessions
+	protected void finish() {
+		if(this.joined) this.budget.leave();
+		this.joined = false;
+		super.finish();
+	}
+
+	// Handle one packet received from baryk
+	void receive(PhotoPacket ppacket) throws IOException {
+		// Only acks of our connection count, a foreign conNum or a repeated SYN must not end or slow the upload
+		if(ppacket.conNum() != connection.conNum || ppacket.syn()) {
+			connection.metrics.dropped();
+			return;
+		}
+		heard();
+
+		if(ppacket.rst()) {
+			Log.info("Baryk reset the connection. Ending.");
+			abort("Reset by baryk");
+			return;
+		}
+
+		this.curAck = (int) SerialNumber.unwrap(this.windowStart, ppacket.ackNum());
+		// Ack beyond the data sent is one delayed by more than 32 KB and unwrapped the wrong way
+		if(this.curAck > Math.min(this.length, this.board.next() * 255)) this.curAck = -1;
+
+		if(this.curAck == this.length) {
+			this.board.ack(this.segments, connection.clock.nanoTime(), connection.metrics);
+			connection.metrics.delivered(this.length - this.windowStart);
+			Log.info("SENDING FINISHED! " + connection.rto);
+			this.confirmed = true;
+			sendFin();
+			finish();
+			return;
+		}
+
+		if(this.curAck >= this.windowStart) {
+			if(this.curAck > this.windowStart) {
+				// Baryk has everything before curAck, time it and slide the window
+				long rtt = this.board.ack(this.curAck / 255, connection.clock.nanoTime(), connection.metrics);
+				if(rtt >= 0) {
+					connection.rto.sample(rtt);
+					connection.metrics.rtt(rtt / 1000);
+				}
+				connection.metrics.delivered(this.curAck - this.windowStart);
+				this.cwnd.acked(this.curAck / 255 - this.windowStart / 255);
+				this.windowStart = this.curAck;
+				this.dupAcks = 0;
+				fillWindow();
+			}
+			else {
+				connection.metrics.duplicate();
+				if(++this.dupAcks == DUP_ACKS) {
+					// Fast retransmit of the segment baryk is missing
+					connection.metrics.fastRetransmit();
+					this.cwnd.loss();
+					if(Log.DEBUG_ENABLED) Log.debug("Fast retransmit. " + this.cwnd);
+					sendSegment(this.windowStart / 255);
+				}
+			}
+		}
+
+		retransmitExpired();
+		flush();
+	}
+
+	// Baryk acknowledged the whole image
+	public boolean confirmed() {
+		return this.confirmed;
+	}
+
+	public int length() {
+		return this.length;
+	}
+
+	// Wait for acks no longer than until the earliest segment timer, the next paced or budgeted send
+	// or the idle deadline
+	int receiveTimeout() {
+		long now = connection.clock.nanoTime();
+		long deadline = this.board.nextDeadline();
+
+		if(this.queueSize > 0) deadline = Math.min(deadline, now + Math.max(this.pacer.delay(now), this.budget.delay(DATA_LENGTH, now)));
+		if(deadline == Long.MAX_VALUE) return idle(connection.rto.rto());
+		return idle((int) Math.max(1, (deadline - now + 999999) / 1000000));
+	}
+
+	// Resend expired segments, fail if baryk stopped acking
+	void timeout() throws IOException {
+		checkIdle();
+		retransmitExpired();
+		flush();
+	}
+
+	// A retransmission timer expired: everything in flight counts as lost, the oldest segment is resent
+	// now and the rest by fillWindow as the collapsed window grows again
+	private void retransmitExpired() throws IOException {
+		int count = this.board.expired(connection.clock.nanoTime(), this.expired);
+
+		if(count == 0) return;
+
+		connection.metrics.timeout();
+		connection.rto.backoff();
+		this.cwnd.timeout();
+		if(Log.DEBUG_ENABLED) Log.debug("Timeout occurred. " + connection.rto + " " + this.cwnd);
+
+		int oldest = this.board.first();
+		this.board.lost(oldest + 1);
+		this.resend = oldest + 1;
+		this.resendEnd = this.board.next();
+		sendSegment(oldest);
+	}
+	
+	// Queue segments lost to a timeout and then segments not yet sent up to the end of the window and send them
+	private void fillWindow() throws IOException {
+		int end = Math.min(this.segments, this.windowStart / 255 + this.cwnd.segments());
+
+		this.resend = Math.max(this.resend, this.windowStart / 255);
+		while(this.resend < Math.min(end, this.resendEnd)) sendSegment(this.resend++);
+
+		for (int i = Math.max(this.queuedNext, this.board.next()); i < end; i++) {
+			sendSegment(i);
+		}
+		flush();
+	}
+	
+	// Queue one segment for the next flush, a full queue only drops retransmissions which time out again
+	private void sendSegment(int index) {
+
+		if(this.queueSize == QUEUE) return;
+
+		this.queue[(this.queueHead + this.queueSize++) & (QUEUE - 1)] = index;
+		if(index >= this.queuedNext) this.queuedNext = index + 1;
+	}
+
+	// Send queued segments the pacer and budget let out now in one loop and start their retransmission timers
+	private void flush() throws IOException {
+		long now = connection.clock.nanoTime();
+		int count = 0;
+		int allowance = this.queueSize == 0 ? 0 : this.budget.grant(DATA_LENGTH, this.queueSize * DATA_LENGTH, now);
+
+		while(this.queueSize > 0 && this.pacer.delay(now) == 0 && allowance >= DATA_LENGTH) {
+			int index = this.queue[this.queueHead];
+			this.queueHead = (this.queueHead + 1) & (QUEUE - 1);
+			this.queueSize--;
+
+			if(index < this.windowStart / 255) continue; // Acked while waiting
+
+			int offset = index * 255;
+			ByteBuffer segment = this.image.segment(offset);
+			int length = PhotoPacket.HEADER_LENGTH + segment.remaining();
+
+			if(Log.DEBUG_ENABLED && this.length - offset < 255) {
+				Log.debug("PREFINAL PACKET SIZE: " + (this.length - offset));
+			}
+
+			if(index < this.board.next()) connection.metrics.retransmit();
+			this.board.sent(index, now, connection.rto.rto());
+			this.pacer.sent(length, now, connection.rto.srtt(), this.cwnd.segments() * 255);
+			allowance -= length;
+			this.offsets[count] = offset;
+			this.batch[count++] = segment;
+		}
+
+		this.budget.refund(allowance);
+		connection.send(this.offsets, this.batch, count);
+	}
+	
+	// End communication with baryk
+	private void sendFin() throws IOException {
+		connection.send(this.length, 0, FIN);
+		connection.linger(this.length, 0, true); // Waiting for FIN of baryk is left to the lingerer
+	}
+}
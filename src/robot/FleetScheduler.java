@@ -0,0 +1,121 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+// Admits fleet transfers into a SessionSelector as earlier ones finish. Firmware uploads go ahead of
+// photo downloads, at most -Drobot.fleet.perRobot sessions (default 2) run with one robot and
+// -Drobot.fleet.sessions (default 16) at once. Sending is limited by TokenBucket.SHARED
+class FleetScheduler {
+
+	public static final int PER_ROBOT = Math.max(1, Integer.getInteger("robot.fleet.perRobot", 2));
+	public static final int SESSIONS = Math.max(1, Integer.getInteger("robot.fleet.sessions", 16));
+
+	private SessionSelector selector;
+	private LinkedList<Job> firmware = new LinkedList<Job>(); // Uploads waiting, in submission order
+	private LinkedList<Job> photos = new LinkedList<Job>(); // Downloads waiting, in submission order
+	private HashMap<InetSocketAddress, Integer> perRobot = new HashMap<InetSocketAddress, Integer>(); // Running sessions by robot
+	private HashMap<Session, InetSocketAddress> running = new HashMap<Session, InetSocketAddress>();
+	private int failed = 0; // Transfers that could not start or ended with an error
+
+	public FleetScheduler(SessionSelector selector) {
+		this.selector = selector;
+		selector.setScheduler(this);
+	}
+
+	// Queue photo download from host into filename
+	public void photo(String host, String filename) throws IOException {
+		this.photos.add(new Job(host, filename, false));
+	}
+
+	// Queue firmware upload of filename to host
+	public void firmware(String host, String filename) throws IOException {
+		this.firmware.add(new Job(host, filename, true));
+	}
+
+	// Run queued transfers until all of them are done
+	public void run() throws IOException {
+		admit();
+		this.selector.run();
+	}
+
+	// Session failed, count it and let the next transfer in
+	void failed(Session session) throws IOException {
+		this.failed++;
+		finished(session);
+	}
+
+	// Transfers that could not start or ended with an error
+	public int failed() {
+		return this.failed;
+	}
+
+	// Session ended or gave up, let the next transfer in
+	void finished(Session session) throws IOException {
+		InetSocketAddress target = this.running.remove(session);
+
+		if(target == null) return;
+		this.perRobot.put(target, this.perRobot.get(target) - 1);
+		admit();
+	}
+
+	// Start waiting transfers while the limits allow, firmware first
+	private void admit() throws IOException {
+		admit(this.firmware);
+		admit(this.photos);
+	}
+
+	private void admit(LinkedList<Job> queue) throws IOException {
+
+		for (Iterator<Job> it = queue.iterator(); it.hasNext() && this.running.size() < SESSIONS;) {
+			Job job = it.next();
+			Integer count = this.perRobot.get(job.target);
+
+			if(count != null && count >= PER_ROBOT) continue; // Robot busy, a later job may go to another one
+
+			it.remove();
+			Session session;
+			Connection connection = this.selector.connect(job.host);
+
+			try {
+				session = job.firmware ? new FirmwareSender(connection, job.filename) : new PhotoClient(connection, job.filename);
+			}
+			catch(IOException e) {
+				Log.info("Cannot start transfer with " + job.host + ": " + e.getMessage());
+				this.failed++;
+				continue;
+			}
+
+			this.running.put(session, job.target);
+			this.perRobot.put(job.target, count == null ? 1 : count + 1);
+			this.selector.add(session, job.firmware ? Robot.UPLOAD : Robot.DOWNLOAD);
+		}
+	}
+
+	// Transfer waiting for admission
+	private static class Job {
+		String host;
+		String filename; // Photo to write or firmware to send
+		boolean firmware;
+		InetSocketAddress target; // Robot the job counts against
+
+		Job(String host, String filename, boolean firmware) throws IOException {
+			this.host = host;
+			this.filename = filename;
+			this.firmware = firmware;
+
+			try {
+				this.target = Connection.resolve(host);
+			}
+			catch(UnknownHostException e) {
+				throw new IOException("Unknown host " + host);
+			}
+		}
+	}
+}
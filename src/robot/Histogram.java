@@ -0,0 +1,119 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear histogram of non-negative values in the spirit of HdrHistogram, about 6 % precision.
+// Recording is lock free and can be done from any thread. A compacted histogram keeps p50, p90
+// and p99 instead of its buckets
+class Histogram {
+
+	private static final int SUB_BITS = 5; // Values below 2^SUB_BITS are counted exactly
+	private static final int SUB = 1 << SUB_BITS; // Exact buckets
+	private static final int HALF = SUB / 2; // Buckets per power of two above SUB
+	private static final int BUCKETS = SUB + (64 - SUB_BITS) * HALF;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS); // null once compacted
+	private long[] percentiles; // p50, p90 and p99 when compacted
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private AtomicLong max = new AtomicLong();
+
+	// Count one value, negative values count as 0. Compacted by the recording thread, values recorded
+	// later only go to count, mean and max
+	public void record(long value) {
+
+		if(value < 0) value = 0;
+		if(this.counts != null) this.counts.incrementAndGet(index(value));
+		this.count.increment();
+		this.sum.add(value);
+
+		long seen = this.max.get();
+		while(value > seen && !this.max.compareAndSet(seen, value)) seen = this.max.get();
+	}
+
+	// Add all values of other histogram, neither may be compacted
+	public void add(Histogram other) {
+
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = other.counts.get(i);
+			if(n != 0) this.counts.addAndGet(i, n);
+		}
+		this.count.add(other.count.sum());
+		this.sum.add(other.sum.sum());
+
+		long value = other.max.get();
+		long seen = this.max.get();
+		while(value > seen && !this.max.compareAndSet(seen, value)) seen = this.max.get();
+	}
+
+	// Keep the reported percentiles and drop the buckets
+	public void compact() {
+		if(this.counts == null) return;
+
+		this.percentiles = new long[] {percentile(50), percentile(90), percentile(99)};
+		this.counts = null;
+	}
+
+	// Smallest bucket value such that percent of values are not above it. Once compacted the nearest
+	// kept percentile at or above percent, max above p99
+	public long percentile(double percent) {
+		long total = this.count.sum();
+
+		if(total == 0) return 0;
+		if(this.counts == null) {
+			if(percent <= 50) return this.percentiles[0];
+			if(percent <= 90) return this.percentiles[1];
+			return percent <= 99 ? this.percentiles[2] : this.max.get();
+		}
+
+		long target = Math.max(1, (long) Math.ceil(percent / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.counts.get(i);
+			if(seen >= target) return Math.min(highest(i), this.max.get());
+		}
+		return this.max.get();
+	}
+
+	public long count() {
+		return this.count.sum();
+	}
+
+	public long max() {
+		return this.max.get();
+	}
+
+	public double mean() {
+		long total = this.count.sum();
+		return total == 0 ? 0 : (double) this.sum.sum() / total;
+	}
+
+	// Bucket of value, exact below SUB and HALF buckets per power of two above
+	private static int index(long value) {
+
+		if(value < SUB) return (int) value;
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+		return SUB + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	// Highest value falling into bucket
+	private static long highest(int index) {
+
+		if(index < SUB) return index;
+
+		int shift = (index - SUB) / HALF + 1;
+		long mantissa = (index - SUB) % HALF + HALF;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	// JSON object with count, mean and percentiles
+	public String toJson() {
+		return "{\"count\": " + count() + ", \"mean\": " + Math.round(mean()) + ", \"p50\": " + percentile(50)
+				+ ", \"p90\": " + percentile(90) + ", \"p99\": " + percentile(99) + ", \"max\": " + max() + "}";
+	}
+}
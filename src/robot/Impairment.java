@@ -0,0 +1,87 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.util.Random;
+
+// Seeded network impairments RobotSimulator applies to every datagram.
+// Spec format: loss=0.05,dup=0.01,reorder=0.02,delay=10,jitter=5,bandwidth=200000,seed=1
+class Impairment {
+
+	public double loss = 0; // Probability a datagram is lost, in each direction
+	public double duplicate = 0; // Probability a sent datagram is delivered twice
+	public double reorder = 0; // Probability a sent datagram is held back behind later ones
+	public int delay = 0; // One way delay in ms
+	public int jitter = 0; // Random extra delay up to this many ms
+	public long bandwidth = 0; // Link capacity in bytes per second, 0 for unlimited
+	public long seed = 1; // Seed of all random decisions
+
+	private Random random;
+	private long linkFree = 0; // Time in ns the link finishes sending queued datagrams
+
+	public Impairment() {
+		this.random = new Random(this.seed);
+	}
+
+	// Parse comma separated key=value spec, unknown keys are an error
+	public static Impairment parse(String spec) {
+		Impairment impairment = new Impairment();
+
+		for (String part : spec.split(",")) {
+			if(part.trim().length() == 0) continue;
+
+			String[] pair = part.split("=");
+			if(pair.length != 2) throw new IllegalArgumentException("Bad impairment " + part);
+			String key = pair[0].trim();
+			String value = pair[1].trim();
+
+			if(key.equals("loss")) impairment.loss = Double.parseDouble(value);
+			else if(key.equals("dup")) impairment.duplicate = Double.parseDouble(value);
+			else if(key.equals("reorder")) impairment.reorder = Double.parseDouble(value);
+			else if(key.equals("delay")) impairment.delay = Integer.parseInt(value);
+			else if(key.equals("jitter")) impairment.jitter = Integer.parseInt(value);
+			else if(key.equals("bandwidth")) impairment.bandwidth = Long.parseLong(value);
+			else if(key.equals("seed")) impairment.seed = Long.parseLong(value);
+			else throw new IllegalArgumentException("Unknown impairment " + key);
+		}
+
+		impairment.random = new Random(impairment.seed);
+		return impairment;
+	}
+
+	// Decide if a received datagram is lost
+	public boolean drop() {
+		return this.loss > 0 && this.random.nextDouble() < this.loss;
+	}
+
+	// Delivery times in ns of a datagram of length sent at now, return number of copies, 0 if lost
+	public int schedule(long now, int length, long[] times) {
+
+		if(drop()) return 0;
+
+		long departure = now;
+		if(this.bandwidth > 0) {
+			departure = Math.max(now, this.linkFree) + length * 1000000000L / this.bandwidth;
+			this.linkFree = departure;
+		}
+
+		int copies = this.duplicate > 0 && this.random.nextDouble() < this.duplicate ? 2 : 1;
+		for (int i = 0; i < copies; i++) {
+			long extra = this.delay;
+			if(this.jitter > 0) extra += this.random.nextInt(this.jitter + 1);
+			if(this.reorder > 0 && this.random.nextDouble() < this.reorder) extra += Math.max(5, 2 * this.jitter);
+			times[i] = departure + extra * 1000000;
+		}
+
+		return copies;
+	}
+
+	public int nextConNum() {
+		return this.random.nextInt() & 0x7FFFFFFF | 1;
+	}
+
+	public String toString() {
+		return "loss=" + this.loss + ",dup=" + this.duplicate + ",reorder=" + this.reorder + ",delay=" + this.delay
+				+ ",jitter=" + this.jitter + ",bandwidth=" + this.bandwidth + ",seed=" + this.seed;
+	}
+}
@@ -0,0 +1,420 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Finishes the teardown of sessions on a background thread once their payload is done, so the caller
+// has its result at once. A session that started closing repeats FIN with exponential backoff until
+// baryk answers. A session answering baryk's FIN repeats it whenever baryk repeats its own and ends after
+// -Drobot.linger.quiet ms (default 300) without one. Either gives up after FINS FINs or -Drobot.linger.max ms
+// (default 2000) and releases the channel. Channels of a SessionSelector that ended are handed over too and
+// closed once no lingering session uses them. A lingerer whose selector breaks releases everything it holds
+// and the next session handed over starts a new one
+class Lingerer implements Runnable {
+
+	public static final int FINS = 20; // Most FINs sent for one session
+	public static final int QUIET = Integer.getInteger("robot.linger.quiet", 300); // ms without FIN from baryk ending an answering session
+	public static final int MAX = Integer.getInteger("robot.linger.max", 2000); // Most ms a session lingers, bounds drain
+
+	private static final int FIN = 2; // FIN flag
+	private static Lingerer instance; // Started with the first session handed over
+
+	Selector selector; // Channels of lingering sessions not shared with a SessionSelector
+	private ConcurrentLinkedQueue<Closing> added = new ConcurrentLinkedQueue<Closing>(); // Handed over, not yet seen by the thread
+	private ConcurrentLinkedQueue<Integer> fins = new ConcurrentLinkedQueue<Integer>(); // conNums of FINs arriving on shared channels
+	private ConcurrentLinkedQueue<DatagramChannel> handed = new ConcurrentLinkedQueue<DatagramChannel>(); // Shared channels whose SessionSelector ended
+	private ArrayList<DatagramChannel> owned = new ArrayList<DatagramChannel>(); // Handed channels not closed yet, thread only
+	private ArrayList<Closing> closing = new ArrayList<Closing>(); // Lingering sessions, thread only
+	private ByteBuffer buffer = ByteBuffer.allocate(PhotoPacket.MAX_LENGTH); // Datagram read from a lingering channel
+	private PhotoPacket received = new PhotoPacket(); // View of it
+	private int pending = 0; // Sessions handed over and not released yet, guarded by this
+	private boolean failed = false; // Thread ended on a broken selector, nothing more is taken over, guarded by this
+
+	private Lingerer() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	static synchronized Lingerer get() throws IOException {
+		if(instance == null || instance.failed()) {
+			instance = new Lingerer();
+			Thread thread = new Thread(instance, "linger");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return instance;
+	}
+
+	// Take over connection whose FIN carrying seqNum and ackNum was sent once, initiator if we closed first
+	public void add(Connection connection, int seqNum, int ackNum, boolean initiator) {
+		synchronized(this) {
+			if(!this.failed) {
+				this.pending++;
+				this.added.add(new Closing(connection, seqNum, ackNum, initiator));
+				this.selector.wakeup();
+				return;
+			}
+		}
+
+		try {
+			connection.close(); // Lingerer just failed, no teardown
+		}
+		catch(IOException e) {}
+	}
+
+	// FIN for conNum arrived on a channel of SessionSelector after its session ended
+	public static void fin(int conNum) {
+		Lingerer lingerer;
+
+		synchronized(Lingerer.class) {
+			lingerer = instance;
+		}
+		if(lingerer == null) return;
+
+		lingerer.fins.add(conNum);
+		lingerer.selector.wakeup();
+	}
+
+	// SessionSelector ended, close its channel once the sessions lingering on it are released.
+	// The channel must no longer be registered with the selector of the SessionSelector
+	public static void adopt(DatagramChannel channel) {
+		Lingerer lingerer;
+
+		synchronized(Lingerer.class) {
+			lingerer = instance;
+		}
+
+		if(lingerer == null) {
+			close(channel); // Nothing ever lingered
+			return;
+		}
+
+		synchronized(lingerer) {
+			if(!lingerer.failed) {
+				lingerer.handed.add(channel);
+				lingerer.selector.wakeup();
+				return;
+			}
+		}
+		close(channel);
+	}
+
+	// Wait until every session handed over so far is released, before the JVM exits
+	public static void drain() {
+		Lingerer lingerer;
+
+		synchronized(Lingerer.class) {
+			lingerer = instance;
+		}
+		if(lingerer == null) return;
+
+		synchronized(lingerer) {
+			while(lingerer.pending > 0) {
+				try {
+					lingerer.wait();
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	public void run() {
+
+		while(true) {
+			try {
+				long now = millis();
+				long next = Long.MAX_VALUE;
+
+				// Channels before sessions, so every session handed over before its channel is seen by closeUnused
+				DatagramChannel channel;
+				while((channel = this.handed.poll()) != null) adopted(channel);
+
+				Closing session;
+				while((session = this.added.poll()) != null) start(session, now);
+
+				Integer conNum;
+				while((conNum = this.fins.poll()) != null) finned(null, conNum, now);
+
+				for (int i = this.closing.size() - 1; i >= 0; i--) {
+					session = this.closing.get(i);
+					try {
+						if(session.deadline <= now) expired(session, now);
+					}
+					catch(RuntimeException e) {
+						release(session, "Lingering failed: " + e);
+					}
+					if(this.closing.contains(session)) next = Math.min(next, session.deadline);
+				}
+				closeUnused();
+
+				this.selector.select(next == Long.MAX_VALUE ? 0 : Math.max(1, next - now));
+
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(key.attachment() instanceof Closing) read((Closing) key.attachment(), millis());
+					else read((DatagramChannel) key.attachment(), millis());
+				}
+				closeUnused();
+			}
+			catch(IOException e) {
+				fail(e);
+				return;
+			}
+			catch(RuntimeException e) {
+				fail(e);
+				return;
+			}
+		}
+	}
+
+	// Selector broke, retrying would spin. Release every session and channel and take nothing more over
+	private void fail(Exception e) {
+		Log.error("Lingering failed: " + e);
+
+		synchronized(this) {
+			this.failed = true;
+		}
+
+		Closing session;
+		while((session = this.added.poll()) != null) release(session, null);
+		for (int i = this.closing.size() - 1; i >= 0; i--) release(this.closing.get(i), null);
+
+		DatagramChannel channel;
+		while((channel = this.handed.poll()) != null) close(channel);
+		for (DatagramChannel owned : this.owned) close(owned);
+		this.owned.clear();
+
+		try {
+			this.selector.close();
+		}
+		catch(IOException ignored) {}
+	}
+
+	synchronized boolean failed() {
+		return this.failed;
+	}
+
+	// Monotonic time in ms
+	private static long millis() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private void start(Closing session, long now) {
+		Connection connection = session.connection;
+
+		try {
+			if(connection.channel.isOpen() && !connection.isShared()) connection.channel.register(this.selector, SelectionKey.OP_READ, session);
+		}
+		catch(IOException e) {
+			release(session, "Lingering connection failed: " + e);
+			return;
+		}
+		catch(RuntimeException e) {
+			release(session, "Lingering connection failed: " + e);
+			return;
+		}
+
+		session.interval = session.initiator ? connection.rto.rto() : QUIET;
+		session.giveUpAt = now + MAX;
+		session.deadline = Math.min(now + session.interval, session.giveUpAt);
+		this.closing.add(session);
+	}
+
+	// Take over channel of an ended SessionSelector to read the FINs of its lingering sessions
+	private void adopted(DatagramChannel channel) {
+
+		try {
+			channel.register(this.selector, SelectionKey.OP_READ, channel);
+			this.owned.add(channel);
+		}
+		catch(IOException e) {
+			close(channel);
+		}
+		catch(RuntimeException e) {
+			close(channel);
+		}
+	}
+
+	// Close handed channels no lingering session uses any more
+	private void closeUnused() {
+
+		for (int i = this.owned.size() - 1; i >= 0; i--) {
+			DatagramChannel channel = this.owned.get(i);
+			if(uses(channel)) continue;
+
+			this.owned.remove(i);
+			close(channel);
+		}
+	}
+
+	private boolean uses(DatagramChannel channel) {
+		for (int i = 0; i < this.closing.size(); i++) {
+			if(this.closing.get(i).connection.channel == channel) return true;
+		}
+		return false;
+	}
+
+	private static void close(DatagramChannel channel) {
+		try {
+			channel.close();
+		}
+		catch(IOException e) {}
+	}
+
+	// FIN for conNum arrived on channel, null when SessionSelector read it
+	private void finned(DatagramChannel channel, int conNum, long now) {
+		for (int i = this.closing.size() - 1; i >= 0; i--) {
+			Closing session = this.closing.get(i);
+			if(session.connection.conNum == conNum && (channel == null || session.connection.channel == channel)) answered(session, now);
+		}
+	}
+
+	// Drain datagrams of a handed channel shared by several lingering sessions
+	private void read(DatagramChannel channel, long now) {
+
+		try {
+			while(true) {
+				this.buffer.clear();
+				if(channel.receive(this.buffer) == null) return;
+
+				this.buffer.flip();
+				if(this.buffer.limit() < PhotoPacket.HEADER_LENGTH) continue;
+
+				PacketLog.received(this.buffer);
+				this.received.wrap(this.buffer, null);
+				if(this.received.fin()) finned(channel, this.received.conNum(), now);
+				this.received.recycle();
+			}
+		}
+		catch(IOException e) {
+			// Every session on the channel is done for
+			for (int i = this.closing.size() - 1; i >= 0; i--) {
+				if(this.closing.get(i).connection.channel == channel) release(this.closing.get(i), "Lingering connection failed: " + e.getMessage());
+			}
+		}
+	}
+
+	// Drain datagrams of a lingering channel, only FINs of the session matter
+	private void read(Closing session, long now) {
+
+		try {
+			while(this.closing.contains(session)) {
+				this.buffer.clear();
+				if(session.connection.channel.receive(this.buffer) == null) return;
+
+				this.buffer.flip();
+				if(this.buffer.limit() < PhotoPacket.HEADER_LENGTH) continue;
+
+				PacketLog.received(this.buffer);
+				this.received.wrap(this.buffer, null);
+				if(this.received.conNum() == session.connection.conNum && this.received.fin()) answered(session, now);
+				this.received.recycle();
+			}
+		}
+		catch(IOException e) {
+			release(session, "Lingering connection failed: " + e.getMessage());
+		}
+		catch(RuntimeException e) {
+			release(session, "Lingering failed: " + e);
+		}
+	}
+
+	// Baryk sent FIN
+	private void answered(Closing session, long now) {
+
+		if(session.initiator) {
+			release(session, null);
+			return;
+		}
+
+		// Our FIN got lost, baryk asks again
+		send(session);
+		session.deadline = Math.min(now + QUIET, session.giveUpAt);
+	}
+
+	// FIN timer ran out
+	private void expired(Closing session, long now) {
+
+		if(!session.initiator) {
+			release(session, null); // Baryk is quiet, it has our FIN
+			return;
+		}
+		if(now >= session.giveUpAt) {
+			release(session, "No FIN from baryk after " + MAX + " ms. Ending.");
+			return;
+		}
+
+		session.interval = Math.min(2 * session.interval, RtoEstimator.MAX_RTO);
+		session.deadline = Math.min(now + session.interval, session.giveUpAt);
+		send(session);
+	}
+
+	private void send(Closing session) {
+
+		if(session.fins >= FINS) {
+			release(session, "FIN sent " + FINS + " times. Ending.");
+			return;
+		}
+
+		try {
+			session.connection.send(session.seqNum, session.ackNum, FIN);
+			session.fins++;
+		}
+		catch(IOException e) {
+			release(session, "Lingering connection failed: " + e.getMessage());
+		}
+	}
+
+	// Close the channel of session and forget it, once per session whatever fails
+	private void release(Closing session, String reason) {
+		if(session.released) return;
+
+		session.released = true;
+		this.closing.remove(session);
+
+		try {
+			if(reason != null) Log.info(reason);
+			session.connection.close();
+		}
+		catch(IOException e) {}
+		catch(RuntimeException e) {}
+		finally {
+			synchronized(this) {
+				this.pending--;
+				notifyAll();
+			}
+		}
+	}
+
+	// Session waiting for the end of its teardown
+	private static class Closing {
+		Connection connection;
+		int seqNum; // Of our FIN
+		int ackNum; // Of our FIN
+		boolean initiator; // We sent FIN first and wait for baryk's
+		int fins = 1; // FINs sent, the session sent the first one
+		long interval; // Current FIN timeout in ms
+		long deadline; // Time of the next FIN or the end of quiet in ms
+		long giveUpAt; // Time in ms the session is released whatever baryk does
+		boolean released = false; // Channel closed and pending decremented
+
+		Closing(Connection connection, int seqNum, int ackNum, boolean initiator) {
+			this.connection = connection;
+			this.seqNum = seqNum;
+			this.ackNum = ackNum;
+			this.initiator = initiator;
+		}
+	}
+}
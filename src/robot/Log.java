@@ -0,0 +1,39 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// Console messages by level, chosen once with -Drobot.log=off|info|debug|packets
+class Log {
+
+	public static final int OFF = 0; // Nothing at all
+	public static final int INFO = 1; // Transfer milestones
+	public static final int DEBUG = 2; // Timeouts and retransmissions
+	public static final int PACKETS = 3; // Every datagram into the binary PacketLog
+
+	public static final int LEVEL = level(System.getProperty("robot.log", "info"));
+	public static final boolean INFO_ENABLED = LEVEL >= INFO;
+	public static final boolean DEBUG_ENABLED = LEVEL >= DEBUG;
+	public static final boolean PACKETS_ENABLED = LEVEL >= PACKETS;
+
+	public static void info(String message) {
+		if(INFO_ENABLED) System.out.println(message);
+	}
+
+	// Failures ending a thread or a server, on stderr unless logging is off
+	public static void error(String message) {
+		if(INFO_ENABLED) System.err.println(message);
+	}
+
+	// Callers on the hot path check DEBUG_ENABLED first so the message is never built
+	public static void debug(String message) {
+		if(DEBUG_ENABLED) System.out.println(message);
+	}
+
+	private static int level(String name) {
+
+		if(name.equalsIgnoreCase("off")) return OFF;
+		if(name.equalsIgnoreCase("debug")) return DEBUG;
+		if(name.equalsIgnoreCase("packets")) return PACKETS;
+		return INFO;
+	}
+}
@@ -0,0 +1,51 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// Spaces datagrams of one session so a window does not leave in a single burst.
+// -Drobot.pace=<bytes per second> paces at a fixed rate, -Drobot.pace=rtt spreads the window over
+// the smoothed RTT, 0 (default) sends unpaced
+class Pacer {
+
+	public static final String PACE = System.getProperty("robot.pace", "0");
+
+	private static final long SLACK = 200000; // Datagrams due this many ns ahead go now, timeouts are in ms
+
+	private long rate; // Fixed rate in bytes per second, 0 if derived from RTT or off
+	private boolean adaptive; // Rate derived from RTT and window
+	private long nextSend = 0; // Time in ns the next datagram may leave
+
+	public Pacer() {
+		this(PACE);
+	}
+
+	public Pacer(String pace) {
+		if(pace.equals("rtt")) this.adaptive = true;
+		else this.rate = Long.parseLong(pace);
+	}
+
+	public boolean enabled() {
+		return this.adaptive || this.rate > 0;
+	}
+
+	// Time in ns until the next datagram may leave, 0 if it may leave now
+	public long delay(long now) {
+		long delay = this.nextSend - now;
+
+		return delay > SLACK ? delay : 0;
+	}
+
+	// Datagram of length bytes left at now; srtt in us (-1 if unknown) and window in bytes drive the adaptive rate
+	public void sent(int length, long now, long srtt, int window) {
+		long interval;
+
+		if(this.adaptive) {
+			if(srtt <= 0) return; // Nothing to derive the rate from yet
+			interval = srtt * 1000 * length / window;
+		}
+		else if(this.rate > 0) interval = length * 1000000000L / this.rate;
+		else return;
+
+		this.nextSend = Math.max(this.nextSend, now) + interval;
+	}
+}
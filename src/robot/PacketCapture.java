@@ -0,0 +1,82 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Full capture of every datagram sent and received with its time in ns, written to
+// -Drobot.capture=<file> (off by default) and played back by CaptureReplay. Unlike PacketLog it
+// keeps the data, so appends are serialized and the file is written whenever the buffer fills
+class PacketCapture {
+
+	public static final int MAGIC = 0x4B524C43; // "KRLC" at the start of the file
+	public static final int HEADER_LENGTH = 20; // Magic, wall clock ms and nanoTime anchor
+	public static final int RECORD_HEADER = 11; // Time, direction and datagram length before the datagram
+	public static final String FILE = System.getProperty("robot.capture");
+	public static final boolean ENABLED = FILE != null;
+
+	private static final int BUFFER = 1 << 20; // Bytes collected before a write
+
+	private static FileChannel out;
+	private static ByteBuffer buffer = ENABLED ? ByteBuffer.allocateDirect(BUFFER) : null;
+
+	static {
+		if(ENABLED) start();
+	}
+
+	// Append datagram from 0 to limit, its position is left untouched
+	public static synchronized void record(int direction, ByteBuffer frame) {
+		if(out == null) return;
+
+		int length = frame.limit();
+		if(buffer.remaining() < RECORD_HEADER + length) flush();
+
+		buffer.putLong(System.nanoTime());
+		buffer.put((byte) direction);
+		buffer.putShort((short) length);
+		for (int i = 0; i < length; i++) {
+			buffer.put(frame.get(i));
+		}
+	}
+
+	// Open the capture file and write the rest of it on exit
+	private static void start() {
+
+		try {
+			out = new FileOutputStream(FILE, false).getChannel();
+			buffer.putInt(MAGIC).putLong(System.currentTimeMillis()).putLong(System.nanoTime());
+		}
+		catch(IOException e) {
+			System.out.println("Cannot open capture " + FILE + ": " + e.getMessage());
+			return;
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				synchronized(PacketCapture.class) {
+					flush();
+					try {
+						out.close();
+					}
+					catch(IOException e) {}
+					out = null;
+				}
+			}
+		});
+	}
+
+	private static void flush() {
+		buffer.flip();
+
+		try {
+			while(buffer.hasRemaining()) out.write(buffer);
+		}
+		catch(IOException e) {
+			System.out.println("Cannot write capture " + FILE + ": " + e.getMessage());
+		}
+		buffer.clear();
+	}
+}
@@ -0,0 +1,155 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Binary trace of every datagram. Senders only claim a slot in a lock-free ring and store
+// three longs, a background thread drains the ring into the trace file.
+// Decode the file with PacketLogDecoder. Full datagrams go to PacketCapture when it is on
+class PacketLog {
+
+	public static final int MAGIC = 0x4B524C54; // "KRLT" at the start of the file
+	public static final int HEADER_LENGTH = 20; // Magic, wall clock ms and nanoTime anchor
+	public static final int RECORD_LENGTH = 20; // Time, conNum, seq, ack, direction, signs, data length
+	public static final int SEND = 0; // Datagram sent to baryk
+	public static final int RCVD = 1; // Datagram received from baryk
+
+	private static final int CAPACITY = 1 << 16; // Records in the ring, power of two
+	private static final int MASK = CAPACITY - 1;
+	private static final String FILE = System.getProperty("robot.log.file", "./packets.trace");
+
+	private static long[] records; // Record slots, three longs each, allocated by start
+	private static AtomicLongArray published; // Sequence + 1 of record in slot, allocated by start
+	private static final AtomicLong tail = new AtomicLong(); // Next sequence to claim
+	private static final AtomicLong dropped = new AtomicLong(); // Records lost on a full ring
+	private static volatile long head = 0; // Next sequence to drain
+	private static volatile boolean stopped = false;
+
+	static {
+		if(Log.PACKETS_ENABLED) start();
+	}
+
+	// Record datagram sent to baryk
+	public static void sent(ByteBuffer frame) {
+		if(Log.PACKETS_ENABLED) record(SEND, frame);
+		if(PacketCapture.ENABLED) PacketCapture.record(SEND, frame);
+	}
+
+	// Record datagram received from baryk
+	public static void received(ByteBuffer frame) {
+		if(Log.PACKETS_ENABLED) record(RCVD, frame);
+		if(PacketCapture.ENABLED) PacketCapture.record(RCVD, frame);
+	}
+
+	private static void record(int direction, ByteBuffer frame) {
+		long sequence;
+
+		do {
+			sequence = tail.get();
+			if(sequence - head >= CAPACITY) {
+				dropped.incrementAndGet(); // Never block the transfer on logging
+				return;
+			}
+		} while(!tail.compareAndSet(sequence, sequence + 1));
+
+		int slot = (int) (sequence & MASK);
+		int index = slot * 3;
+		records[index] = System.nanoTime();
+		records[index + 1] = frame.limit() >= 8 ? frame.getLong(0) : 0; // conNum, seqNum and ackNum
+		records[index + 2] = (direction << 24) | ((frame.limit() > 8 ? frame.get(8) & 0xFF : 0) << 16)
+				| Math.max(0, frame.limit() - PhotoPacket.HEADER_LENGTH);
+		published.lazySet(slot, sequence + 1);
+	}
+
+	// Allocate the ring, open the trace file and start the drainer. Runs in the static initializer,
+	// so the ring costs nothing unless packets are logged
+	private static void start() {
+		final FileChannel out;
+
+		records = new long[CAPACITY * 3];
+		published = new AtomicLongArray(CAPACITY);
+		try {
+			out = new FileOutputStream(FILE, false).getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putLong(System.currentTimeMillis()).putLong(System.nanoTime()).flip();
+			out.write(header);
+		}
+		catch(IOException e) {
+			Log.error("Cannot open packet log " + FILE + ": " + e.getMessage());
+			return;
+		}
+
+		final Thread drainer = new Thread("packet-log") {
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH * 1024);
+
+				try {
+					while(!stopped) {
+						if(drain(out, buffer) == 0) LockSupport.parkNanos(1000000);
+					}
+					drain(out, buffer);
+					out.close();
+				}
+				catch(IOException e) {
+					Log.error("Packet log failed: " + e);
+				}
+
+				if(dropped.get() > 0) Log.info("Packet log dropped " + dropped.get() + " records.");
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				stopped = true;
+				LockSupport.unpark(drainer);
+				try {
+					drainer.join(1000);
+				}
+				catch(InterruptedException e) {}
+			}
+		});
+	}
+
+	// Write all published records to the file, return their count
+	private static int drain(FileChannel out, ByteBuffer buffer) throws IOException {
+		long sequence = head;
+		int count = 0;
+
+		while(published.get((int) (sequence & MASK)) == sequence + 1) {
+			int index = (int) (sequence & MASK) * 3;
+			long meta = records[index + 2];
+
+			buffer.putLong(records[index]);
+			buffer.putLong(records[index + 1]);
+			buffer.put((byte) (meta >> 24));
+			buffer.put((byte) (meta >> 16));
+			buffer.putShort((short) meta);
+			sequence++;
+			count++;
+
+			if(buffer.remaining() < RECORD_LENGTH) {
+				head = sequence;
+				flush(out, buffer);
+			}
+		}
+
+		head = sequence;
+		flush(out, buffer);
+		return count;
+	}
+
+	private static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) out.write(buffer);
+		buffer.clear();
+	}
+}
@@ -0,0 +1,57 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// Print a binary PacketLog in the console format, -t prefixes every line with its time
+public class PacketLogDecoder {
+
+	public static void main(String[] args) throws IOException {
+		if(args.length == 0) {
+			System.out.println("Usage: java robot.PacketLogDecoder [-t] <packets.trace>");
+			return;
+		}
+
+		boolean times = args[0].equals("-t");
+		FileInputStream in = new FileInputStream(args[args.length - 1]);
+		FileChannel channel = in.getChannel();
+		ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		in.close();
+
+		if(file.remaining() < PacketLog.HEADER_LENGTH || file.getInt() != PacketLog.MAGIC) {
+			System.out.println("Not a packet log.");
+			return;
+		}
+
+		long wallAnchor = file.getLong();
+		long nanoAnchor = file.getLong();
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		StringBuilder line = new StringBuilder();
+
+		while(file.remaining() >= PacketLog.RECORD_LENGTH) {
+			long nanos = file.getLong();
+			int conNum = file.getInt();
+			int seqNum = file.getChar();
+			int ackNum = file.getChar();
+			int direction = file.get();
+			int signs = file.get() & 0xFF;
+			int dataLength = file.getChar();
+
+			line.setLength(0);
+			if(times) {
+				long micros = (nanos - nanoAnchor) / 1000;
+				line.append(format.format(new Date(wallAnchor + micros / 1000)));
+				line.append(String.format("%03d ", micros % 1000));
+			}
+			line.append(direction == PacketLog.SEND ? "SEND: " : "RCVD: ");
+			line.append(PhotoPacket.describe(conNum, seqNum, ackNum, signs, dataLength));
+			System.out.println(line);
+		}
+	}
+}
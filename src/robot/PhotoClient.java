@@ -0,0 +1,261 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+class PhotoClient extends Session {
+
+	private String filename; // Where to save the photo, null if written to a sink of the caller
+
+	private static final int SYN = 4; // SYN flag
+	private static final int FIN = 2; // FIN flag
+	private static final int RST = 1	; // RST flag
+	private static final short WIDTH = 2048; // width of a sliding window
+	private static final int ACK_LENGTH = 9; // length of ack packet
+	private static final int FIN_LENGTH = 9; // length of a fin packet
+	private static final int DROP = -1; // classify: not ours, malformed or beyond the window
+	private static final int STALE = -2; // classify: segment already received
+	private static final int FINISHED = -3; // classify: FIN of our connection
+	private static final int RESET = -4; // classify: RST of our connection
+	public static final int ACK_COALESCE = Integer.getInteger("robot.ack.coalesce", 1); // In order segments per ACK
+	// png requires a PNG photo, auto (default) checks a photo starting like one, off neither checks nor hashes it
+	public static final String VERIFY = System.getProperty("robot.verify", "auto");
+
+	private ReceiveWindow window = new ReceiveWindow(); // Out of order photo datagrams
+	private WritableByteChannel photo; // Photo file or sink, written as the contiguous prefix grows
+
+	long ack = 0; // Photo bytes received in order, the next expected offset
+	private int unacked = 0; // In order segments received since the last ACK
+	private MessageDigest digest; // SHA-256 of the photo received in order, null if not verified
+	private PngValidator png; // Checks the photo received in order, null if not verified
+	private String failure; // Why the photo is bad, null if it is fine
+
+	public PhotoClient(Connection connection) {
+		this(connection, "./fotka.png");
+	}
+
+	public PhotoClient(Connection connection, String filename) {
+		this.connection = connection;
+		this.filename = filename;
+	}
+
+	// Write the photo to sink, which is left open
+	public PhotoClient(Connection connection, WritableByteChannel sink) {
+		this.connection = connection;
+		this.photo = sink;
+	}
+
+	public void run() throws IOException {
+
+		try {
+			start();
+
+			while(!isDone()) {
+				// Take packets already queued first, wait only once the socket is drained
+				PhotoPacket ppacket = connection.poll();
+				if(ppacket == null) {
+					drained();
+					try {
+						ppacket = connection.receive(receiveTimeout());
+					}
+					catch(SocketTimeoutException e) {
+						timeout();
+						continue;
+					}
+				}
+				receive(ppacket);
+			}
+		}
+		catch(IOException e) {
+			abort(e.getMessage());
+			throw e;
+		}
+
+		if(this.failure != null) throw new StreamCorruptedException(this.failure);
+		if(failed()) throw new SocketException("Reset by baryk");
+	}
+
+	// Photo data start flowing right after SYN, open the file to stream them into
+	void start() throws IOException {
+		if(this.filename != null) this.photo = new FileOutputStream(this.filename, false).getChannel();
+		if(!VERIFY.equals("off")) {
+			this.digest = Checksum.sha256();
+			this.png = new PngValidator(VERIFY.equals("png"));
+		}
+		if(ReceivePipeline.DEPTH > 0) connection.pipeline(ReceivePipeline.DEPTH);
+		heard(); // SYN
+	}
+
+	// Handle one packet received from baryk
+	void receive(PhotoPacket ppacket) throws IOException {
+		int index = classify(ppacket);
+
+		if(ppacket.conNum() == connection.conNum) heard();
+
+		if(index == FINISHED) {
+			// We have ppacket with fin flag on
+			Log.info("RECEIVING DATA FINISHED! " + connection.rto);
+			close();
+			Log.info("Saving photo…");
+			savePhoto();
+			Log.info("PHOTO DATA SAVED.");
+			if(this.digest != null) {
+				connection.metrics.sha256 = Checksum.hex(this.digest);
+				Log.info("PHOTO SHA-256: " + connection.metrics.sha256);
+			}
+			if(this.png != null && this.png.checked() && !this.png.complete()) {
+				this.failure = "Photo truncated, no IEND after " + this.ack + " bytes";
+				Log.info(this.failure);
+				abort(this.failure); // Deletes the file
+				return;
+			}
+			finish();
+			return;
+		}
+
+		if(index == RESET) {
+			Log.info("Baryk reset the connection. Ending.");
+			abort("Reset by baryk");
+			return;
+		}
+
+		if(index == DROP) {
+			connection.metrics.dropped();
+			return;
+		}
+
+		if(index == STALE) {
+			// Baryk did not get our ACK, repeat it
+			connection.metrics.duplicate();
+			sendAck();
+			return;
+		}
+
+		boolean inOrder = index == this.window.base();
+		this.window.put(index, ppacket.retain(), connection.clock.nanoTime()); // Save datagram to the window
+		writePrefix(); // Append what is now contiguous to the file and move ACK
+
+		if(this.failure != null) {
+			reset();
+			return;
+		}
+
+		// Gaps are acked at once so baryk retransmits quickly,
+		// in order segments wait until the socket is drained or ACK_COALESCE of them arrived
+		if(!inOrder || ++this.unacked >= ACK_COALESCE) sendAck();
+	}
+
+	// Sort packet by its header alone before anything is stored: segment index of new data,
+	// STALE for data already received, FINISHED for our FIN, RESET for our RST, DROP for anything else
+	private int classify(PhotoPacket ppacket) {
+
+		if(ppacket.conNum() != connection.conNum) return DROP;
+		if(ppacket.rst()) return RESET;
+		if(ppacket.signs() != 0) return ppacket.fin() ? FINISHED : DROP; // SYN repeated by baryk
+
+		int length = ppacket.dataLength();
+		if(length <= 0 || length > 255) return DROP;
+
+		long offset = SerialNumber.unwrap(this.ack, ppacket.seqNum());
+		if(offset < this.ack) return STALE;
+
+		int index = (int) (offset / 255);
+		if(index * 255L != offset || index - this.window.base() >= ReceiveWindow.SLOTS) return DROP;
+		return this.window.accepts(index) ? index : STALE;
+	}
+
+	// Baryk drives the photo transfer, wait for it until the idle deadline
+	int receiveTimeout() {
+		return idle(0);
+	}
+
+	// Nothing to retransmit, fail if baryk fell silent
+	void timeout() throws IOException {
+		checkIdle();
+	}
+
+	// Every queued packet was handled, send the coalesced ACK
+	void drained() throws IOException {
+		if(this.unacked > 0) sendAck();
+	}
+
+	// Send confirmation packet to baryk
+	private void sendAck() throws IOException {
+		connection.send(0, (int) this.ack, 0);
+		this.unacked = 0;
+	}
+
+	// Finish the photo file, everything up to the last ack is already written
+	private void savePhoto() throws IOException {
+		writePrefix();
+		this.window.clear(connection.pool); // Drop segments beyond a hole, baryk never filled it
+
+		if(this.filename == null) return;
+
+		((FileChannel) this.photo).force(false);
+		this.photo.close();
+	}
+
+	// Write contiguous received segments to the file, free their datagrams and advance ACK
+	private void writePrefix() throws IOException {
+		ByteBuffer datagram;
+		long now = connection.clock.nanoTime();
+
+		while((datagram = this.window.poll()) != null) {
+			datagram.position(PhotoPacket.HEADER_LENGTH);
+			if(this.png != null && !this.png.update(datagram)) {
+				// Nothing from the corrupt segment on is written or acked
+				this.failure = "Photo corrupt: " + this.png.error();
+				connection.pool.release(datagram);
+				return;
+			}
+			if(this.digest != null) {
+				this.digest.update(datagram);
+				datagram.position(PhotoPacket.HEADER_LENGTH);
+			}
+			this.ack += datagram.remaining();
+			connection.metrics.delivered(datagram.remaining());
+			connection.metrics.delivery((now - this.window.polledArrival()) / 1000);
+			while(datagram.hasRemaining()) this.photo.write(datagram);
+			connection.pool.release(datagram);
+		}
+	}
+
+	// Photo is corrupt, reset the connection instead of downloading the rest of it
+	private void reset() throws IOException {
+		Log.info(this.failure + ". Sending RST.");
+		connection.send(0, (int) this.ack, RST);
+		abort(this.failure);
+	}
+
+	// Close and delete the partial photo file before the session is dropped
+	void abort(String reason) {
+		if(this.done) return;
+
+		this.window.clear(connection.pool);
+		if(this.filename != null && this.photo != null) {
+			try {
+				this.photo.close();
+			}
+			catch(IOException e) {}
+			new File(this.filename).delete();
+		}
+		super.abort(reason);
+	}
+
+	// Answer FIN of baryk, the lingerer answers again if it repeats its FIN
+	private void close() throws IOException{
+		connection.send(0, (int) this.ack, FIN);
+		connection.linger(0, (int) this.ack, false);
+	}
+}
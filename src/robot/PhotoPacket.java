@@ -0,0 +1,122 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.nio.ByteBuffer;
+
+class PhotoPacket {
+
+	public static final int HEADER_LENGTH = 9;
+	public static final int MAX_LENGTH = 265; // largest datagram we ever receive
+
+	private static final int SYN = 4; // SYN flag
+	private static final int FIN = 2; // FIN flag
+	private static final int RST = 1; // RST flag
+
+	private ByteBuffer buffer; // datagram this packet is a view of, 0 to limit
+	private BufferPool pool; // pool owning the buffer, null if not recycled
+
+	// Point this view at datagram stored in buffer from 0 to limit
+	public PhotoPacket wrap(ByteBuffer buffer, BufferPool pool) {
+
+		this.buffer = buffer;
+		this.pool = pool;
+		return this;
+	}
+
+	public int conNum() {
+		return this.buffer.getInt(0);
+	}
+
+	public int seqNum() {
+		return this.buffer.getChar(4);
+	}
+
+	public int ackNum() {
+		return this.buffer.getChar(6);
+	}
+
+	public int signs() {
+		return this.buffer.get(8) & 0xFF;
+	}
+
+	public boolean syn() {
+		return signs() == SYN;
+	}
+
+	public boolean fin() {
+		return signs() == FIN;
+	}
+
+	public boolean rst() {
+		return signs() == RST;
+	}
+
+	// Length of the data following the header
+	public int dataLength() {
+		return this.buffer.limit() - HEADER_LENGTH;
+	}
+
+	// Data byte at given index
+	public byte data(int index) {
+		return this.buffer.get(HEADER_LENGTH + index);
+	}
+
+	// Take the buffer away from this view, the caller is now responsible for releasing it
+	public ByteBuffer retain() {
+		ByteBuffer buffer = this.buffer;
+		this.buffer = null;
+		return buffer;
+	}
+
+	// Give the buffer back to its pool unless it was retained
+	public void recycle() {
+
+		if(this.buffer != null && this.pool != null) this.pool.release(this.buffer);
+		this.buffer = null;
+	}
+
+	// Write packet header into buffer and prepare it for data
+	public static ByteBuffer encode(ByteBuffer buffer, int conNum, int seqNum, int ackNum, int signs) {
+
+		buffer.clear();
+		buffer.putInt(conNum);
+		buffer.putChar((char) seqNum);
+		buffer.putChar((char) ackNum);
+		buffer.put((byte) signs);
+		return buffer;
+	}
+
+	// Human readable form of packet header, as printed in the packet log
+	public static String describe(int conNum, int seqNum, int ackNum, int signs, int dataLength) {
+
+		StringBuilder log = new StringBuilder();
+		log.append("conNum: " + Integer.toHexString(conNum));
+		log.append(" seqNum: " + seqNum);
+		log.append(" signs: " + signs);
+		log.append (" ack: " + ackNum);
+		log.append(" SYN: " + (signs == SYN));
+		log.append(" FIN: " + (signs == FIN));
+		log.append(" RST: " + (signs == RST));
+		log.append(" dataLength: " + dataLength);
+
+		return log.toString();
+	}
+
+	// Create string from data's hexa
+	// Inspiration from: http://stackoverflow.com/questions/9655181/convert-from-byte-array-to-hex-string-in-java
+	public static String bytesToHex(byte[] bytes) {
+
+		final char[] hexArray = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+		char[] hexChars = new char[bytes.length * 2];
+		int v;
+
+		for (int i = 0; i < bytes.length; i++) {
+			v = bytes[i] & 0xFF;
+			hexChars[i * 2] = hexArray[v >>> 4];
+			hexChars[i * 2 + 1] = hexArray[v & 0x0F];
+		}
+
+		return new String(hexChars);
+	}
+}
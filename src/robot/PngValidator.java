@@ -0,0 +1,145 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+// Checks the PNG structure of a photo while it arrives in order: signature, chunk lengths and types,
+// chunk CRCs, IHDR first and nothing after IEND. Unless required, a photo without the PNG signature is
+// not checked at all
+class PngValidator {
+
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final int IHDR = 0x49484452;
+	private static final int IEND = 0x49454E44;
+
+	private static final int MAGIC = 0; // Reading the signature
+	private static final int LENGTH = 1; // Reading chunk length
+	private static final int TYPE = 2; // Reading chunk type
+	private static final int DATA = 3; // Reading chunk data
+	private static final int CHECK = 4; // Reading chunk CRC
+	private static final int END = 5; // IEND read, the photo is complete
+	private static final int SKIP = 6; // Not a PNG and not required to be
+
+	private boolean required; // Photo must be a PNG
+	private int state = MAGIC;
+	private long offset = 0; // Photo bytes checked
+	private int field = 0; // Length, type or CRC being read
+	private int fieldBytes = 0; // Bytes of it read
+	private long remaining; // Data bytes left in the current chunk
+	private int type; // Type of the current chunk
+	private int chunks = 0; // Complete chunks
+	private CRC32 crc = new CRC32(); // Of the current chunk type and data
+	private String error; // What is wrong, null while the photo is fine
+
+	public PngValidator(boolean required) {
+		this.required = required;
+	}
+
+	// Check the next photo bytes from position to limit, position and limit are left as they were.
+	// Return false once the photo is corrupt
+	public boolean update(ByteBuffer data) {
+		int position = data.position();
+		int limit = data.limit();
+		int i = position;
+
+		while(i < limit && this.error == null && this.state != SKIP) {
+			switch(this.state) {
+			case MAGIC:
+				if(data.get(i++) != SIGNATURE[(int) this.offset]) {
+					if(this.required) fail("Not a PNG");
+					else this.state = SKIP;
+					break;
+				}
+				if(++this.offset == SIGNATURE.length) this.state = LENGTH;
+				break;
+
+			case LENGTH:
+				if(!field(data.get(i++))) break;
+				if(this.field < 0) {
+					fail("Chunk length " + (this.field & 0xFFFFFFFFL) + " out of range");
+					break;
+				}
+				this.remaining = this.field;
+				this.crc.reset();
+				this.state = TYPE;
+				break;
+
+			case TYPE:
+				byte letter = data.get(i++);
+				if(!Character.isLetter((char) letter) || letter < 0) {
+					fail("Chunk type is not ASCII letters");
+					break;
+				}
+				this.crc.update(letter);
+				if(!field(letter)) break;
+				this.type = this.field;
+				if(this.chunks == 0 && (this.type != IHDR || this.remaining != 13)) fail("First chunk is not IHDR");
+				this.state = this.remaining > 0 ? DATA : CHECK;
+				break;
+
+			case DATA:
+				int length = (int) Math.min(this.remaining, limit - i);
+				data.limit(i + length).position(i);
+				this.crc.update(data);
+				data.limit(limit);
+				i += length;
+				this.offset += length;
+				this.remaining -= length;
+				if(this.remaining == 0) this.state = CHECK;
+				break;
+
+			case CHECK:
+				if(!field(data.get(i++))) break;
+				if(this.field != (int) this.crc.getValue()) {
+					fail("CRC mismatch in chunk " + name(this.type));
+					break;
+				}
+				this.chunks++;
+				this.state = this.type == IEND ? END : LENGTH;
+				break;
+
+			case END:
+				fail("Data after IEND");
+				break;
+			}
+		}
+
+		data.limit(limit).position(position);
+		return this.error == null;
+	}
+
+	// Take next byte of a four byte field, true once the field is complete
+	private boolean field(byte next) {
+		this.offset++;
+		this.field = (this.field << 8) | (next & 0xFF);
+		if(++this.fieldBytes < 4) return false;
+
+		this.fieldBytes = 0;
+		return true;
+	}
+
+	private void fail(String reason) {
+		this.error = reason + " at byte " + this.offset;
+	}
+
+	private static String name(int type) {
+		return new String(new char[] {(char) (type >>> 24), (char) (type >>> 16 & 0xFF), (char) (type >>> 8 & 0xFF), (char) (type & 0xFF)});
+	}
+
+	// Photo is checked as a PNG, false if it turned out not to be one
+	public boolean checked() {
+		return this.state != SKIP;
+	}
+
+	// IEND arrived, the photo is complete
+	public boolean complete() {
+		return this.state == END;
+	}
+
+	// What is wrong with the photo, null if nothing so far
+	public String error() {
+		return this.error;
+	}
+}
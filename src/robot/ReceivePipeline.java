@@ -0,0 +1,186 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.util.concurrent.locks.LockSupport;
+
+// Receiver thread of a blocking connection. It only pulls datagrams into pooled buffers and hands
+// them to the session thread over an SPSC ring, so slow reassembly, ACKs or logging do not leave
+// datagrams waiting in the kernel buffer. Buffers come back to it over a second ring.
+// -Drobot.pipeline=<ring size> turns it on for photo downloads, 0 (default) keeps one thread
+class ReceivePipeline implements Runnable {
+
+	public static final int DEPTH = Integer.getInteger("robot.pipeline", 0);
+
+	private static final long STALL = 50000; // Receiver wait in ns while the ring is full
+
+	private DatagramChannel channel;
+	private int conNum; // Datagrams of other connections are dropped by the receiver
+	private Selector selector; // Connection's selector, used by the receiver thread only
+	private TransferMetrics metrics;
+	private SpscRing<ByteBuffer> ring; // Received datagrams, receiver to session thread
+	private SpscRing<ByteBuffer> returned; // Released buffers, session to receiver thread
+	private HandoffPool pool;
+	private Thread receiver;
+	private volatile Thread waiting; // Session thread parked for a datagram, null if it is not
+	private volatile boolean stopped = false;
+	private volatile boolean cancelled = false; // await returns at once, the transfer was cancelled
+	private volatile IOException failure; // Error ending the receiver thread
+
+	public ReceivePipeline(DatagramChannel channel, int conNum, Selector selector, int depth, TransferMetrics metrics) {
+		this.channel = channel;
+		this.conNum = conNum;
+		this.selector = selector;
+		this.metrics = metrics;
+		this.ring = new SpscRing<ByteBuffer>(depth);
+		this.returned = new SpscRing<ByteBuffer>(depth * 2);
+		this.pool = new HandoffPool(this.returned);
+	}
+
+	public void start() {
+		this.receiver = new Thread(this, "receiver-" + this.channel.socket().getLocalPort());
+		this.receiver.setDaemon(true);
+		this.receiver.start();
+	}
+
+	// Pool the session thread releases received buffers into
+	public BufferPool pool() {
+		return this.pool;
+	}
+
+	public void run() {
+		ByteBuffer buffer = this.pool.take();
+
+		try {
+			while(!this.stopped) {
+				if(this.channel.receive(buffer) == null) {
+					this.selector.select(100);
+					this.selector.selectedKeys().clear();
+					continue;
+				}
+
+				buffer.flip();
+				if(buffer.limit() < PhotoPacket.HEADER_LENGTH) {
+					buffer.clear();
+					continue;
+				}
+
+				PacketLog.received(buffer);
+				this.metrics.received(buffer.limit());
+
+				// Only the header is read, foreign datagrams do not cost the session thread anything
+				if(buffer.getInt(0) != this.conNum) {
+					this.metrics.dropped();
+					buffer.clear();
+					continue;
+				}
+
+				// Back-pressure: wait for the session thread, the kernel buffer keeps what arrives meanwhile
+				while(!this.ring.offer(buffer)) {
+					this.metrics.pipelineStall();
+					if(this.stopped) return;
+					LockSupport.parkNanos(STALL);
+				}
+
+				// Dekker style handshake with await: the session thread sets waiting and then checks the ring,
+				// we publish into the ring and then check waiting, so one of us always sees the other
+				Thread waiting = this.waiting;
+				if(waiting != null) LockSupport.unpark(waiting);
+				buffer = this.pool.take();
+			}
+		}
+		catch(IOException e) {
+			if(!this.stopped) this.failure = e;
+		}
+		finally {
+			Thread waiting = this.waiting;
+			if(waiting != null) LockSupport.unpark(waiting);
+		}
+	}
+
+	// Next received datagram, null if none is queued. Session thread only
+	public ByteBuffer poll() throws IOException {
+		ByteBuffer buffer = this.ring.poll();
+
+		if(buffer != null) this.metrics.queueDepth(this.ring.size() + 1);
+		else if(this.failure != null) throw this.failure;
+		return buffer;
+	}
+
+	// Wait up to timeout ms (0 forever) for a datagram, false on timeout. Session thread only
+	public boolean await(int timeout) throws IOException {
+		long deadline = System.nanoTime() + timeout * 1000000L;
+
+		this.waiting = Thread.currentThread();
+		try {
+			while(this.ring.size() == 0 && !this.cancelled) {
+				if(this.failure != null) throw this.failure;
+				if(this.stopped || !this.receiver.isAlive()) throw new IOException("Receiver thread stopped");
+
+				if(timeout == 0) LockSupport.park(this);
+				else {
+					long left = deadline - System.nanoTime();
+					if(left <= 0) return false;
+					LockSupport.parkNanos(this, left);
+				}
+			}
+			return true;
+		}
+		finally {
+			this.waiting = null;
+		}
+	}
+
+	// Wake the session thread for good, any thread may call it
+	public void cancel() {
+		this.cancelled = true;
+		Thread waiting = this.waiting;
+		if(waiting != null) LockSupport.unpark(waiting);
+	}
+
+	// Stop the receiver thread, datagrams still in the ring are dropped
+	public void stop() {
+		this.stopped = true;
+		this.selector.wakeup();
+
+		try {
+			this.receiver.join(1000);
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Buffers are released on the session thread and taken again on the receiver thread
+	private static class HandoffPool extends BufferPool {
+		private SpscRing<ByteBuffer> returned;
+
+		HandoffPool(SpscRing<ByteBuffer> returned) {
+			super(PhotoPacket.MAX_LENGTH);
+			this.returned = returned;
+		}
+
+		// Receiver thread only
+		ByteBuffer take() {
+			ByteBuffer buffer = this.returned.poll();
+
+			if(buffer == null) return ByteBuffer.allocate(PhotoPacket.MAX_LENGTH);
+			buffer.clear();
+			return buffer;
+		}
+
+		// Session thread may acquire buffers too, they never come from the receiver's ring
+		public ByteBuffer acquire() {
+			return ByteBuffer.allocate(PhotoPacket.MAX_LENGTH);
+		}
+
+		// Session thread only, a full ring leaves the buffer to the garbage collector
+		public void release(ByteBuffer buffer) {
+			this.returned.offer(buffer);
+		}
+	}
+}
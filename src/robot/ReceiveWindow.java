@@ -0,0 +1,68 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.nio.ByteBuffer;
+
+// Circular reassembly window over segment indexes, bit in received marks a filled slot
+class ReceiveWindow {
+
+	public static final int SLOTS = 16; // Power of two, covers the 2048 byte window of 255 byte segments
+	private static final int MASK = SLOTS - 1;
+
+	private ByteBuffer[] slots = new ByteBuffer[SLOTS]; // Datagrams waiting for a hole to be filled
+	private long[] arrivedAt = new long[SLOTS]; // Arrival time of every slot in ns
+	private long polledArrival; // Arrival time of the last polled datagram
+	private long received = 0; // Bitset of filled slots
+	private int base = 0; // Index of the first segment not yet delivered
+
+	// Check if segment can be stored, false for delivered, duplicate or too distant segments
+	public boolean accepts(int index) {
+
+		if(index < this.base || index - this.base >= SLOTS) return false;
+		return (this.received & (1L << (index & MASK))) == 0;
+	}
+
+	// Store datagram of an accepted segment arrived at time now in ns
+	public void put(int index, ByteBuffer datagram, long now) {
+		int slot = index & MASK;
+
+		this.slots[slot] = datagram;
+		this.arrivedAt[slot] = now;
+		this.received |= 1L << slot;
+	}
+
+	// Take the next in order datagram, null if there is a hole
+	public ByteBuffer poll() {
+		int slot = this.base & MASK;
+
+		if((this.received & (1L << slot)) == 0) return null;
+
+		ByteBuffer datagram = this.slots[slot];
+		this.slots[slot] = null;
+		this.received &= ~(1L << slot);
+		this.polledArrival = this.arrivedAt[slot];
+		this.base++;
+		return datagram;
+	}
+
+	// Arrival time in ns of the datagram returned by the last poll
+	public long polledArrival() {
+		return this.polledArrival;
+	}
+
+	// Index of the first segment not yet delivered
+	public int base() {
+		return this.base;
+	}
+
+	// Return all buffered datagrams to the pool
+	public void clear(BufferPool pool) {
+
+		for (int i = 0; i < SLOTS; i++) {
+			if(this.slots[i] != null) pool.release(this.slots[i]);
+			this.slots[i] = null;
+		}
+		this.received = 0;
+	}
+}
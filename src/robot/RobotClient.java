@@ -0,0 +1,193 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// Entry point for embedding transfers in another program. Every transfer runs blocking on a thread
+// of the executor and completes its future, errors complete it exceptionally and never exit the JVM.
+// A transfer fails once baryk stays silent for the timeout, cancelling its future aborts it.
+// Without an executor every transfer gets a virtual thread when the JVM has them, a daemon thread otherwise
+public class RobotClient {
+
+	private Executor executor;
+	private int timeout; // ms baryk may stay silent during a transfer, 0 waits forever
+
+	public RobotClient() {
+		this(defaultExecutor());
+	}
+
+	public RobotClient(Executor executor) {
+		this(executor, Connection.IDLE_TIMEOUT);
+	}
+
+	public RobotClient(Executor executor, int timeout) {
+		this.executor = executor;
+		this.timeout = timeout;
+	}
+
+	// Resolve host ahead of a transfer so its handshake does not wait for the resolver.
+	// Completes when the addresses are cached for the next robot.dns.ttl seconds
+	public CompletableFuture<Void> prepare(final String host) {
+		return submit(new Transfer<Void>() {
+			public Void call() throws IOException {
+				AddressCache.resolve(host);
+				return null;
+			}
+		});
+	}
+
+	// Download photo into file target
+	public CompletableFuture<Path> download(final String host, final Path target) {
+		return submit(new Transfer<Path>() {
+			public Path call() throws IOException {
+				Connection connection = connect(host);
+				try {
+					connection.init(Robot.DOWNLOAD);
+					new PhotoClient(connection, target.toString()).run();
+					return target;
+				}
+				finally {
+					connection.discard();
+				}
+			}
+		});
+	}
+
+	// Download photo into memory
+	public CompletableFuture<ByteBuffer> download(final String host) {
+		return submit(new Transfer<ByteBuffer>() {
+			public ByteBuffer call() throws IOException {
+				ByteArrayOutputStream photo = new ByteArrayOutputStream(1 << 16);
+				transfer(this, host, Channels.newChannel(photo));
+				return ByteBuffer.wrap(photo.toByteArray());
+			}
+		});
+	}
+
+	// Download photo into sink of the caller, which is left open. Completes with the photo length
+	public CompletableFuture<Long> download(final String host, final WritableByteChannel sink) {
+		return submit(new Transfer<Long>() {
+			public Long call() throws IOException {
+				return transfer(this, host, sink);
+			}
+		});
+	}
+
+	// Upload firmware file
+	public CompletableFuture<UploadResult> upload(final String host, final Path firmware) {
+		return submit(new Transfer<UploadResult>() {
+			public UploadResult call() throws IOException {
+				FirmwareImage image = new FirmwareImage(firmware.toString());
+				long start = System.nanoTime();
+				Connection connection = connect(host);
+				try {
+					connection.init(Robot.UPLOAD);
+
+					FirmwareSender sender = new FirmwareSender(connection, image);
+					sender.run();
+					return new UploadResult(host, connection.conNum, sender.length(), sender.confirmed(), image.checksum(),
+							(System.nanoTime() - start) / 1000000);
+				}
+				finally {
+					connection.discard();
+				}
+			}
+		});
+	}
+
+	// Download photo into sink as part of transfer, return its length
+	private long transfer(Transfer<?> transfer, String host, WritableByteChannel sink) throws IOException {
+		Connection connection = transfer.connect(host);
+		try {
+			connection.init(Robot.DOWNLOAD);
+			new PhotoClient(connection, sink).run();
+			return connection.metrics.getPayloadBytes();
+		}
+		finally {
+			connection.discard(); // Unless the lingerer took it over
+		}
+	}
+
+	// Run transfer on the executor, cancelling the future aborts it
+	private <T> CompletableFuture<T> submit(final Transfer<T> transfer) {
+		final CompletableFuture<T> future = new CompletableFuture<T>() {
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				transfer.cancel();
+				return super.cancel(mayInterruptIfRunning);
+			}
+		};
+
+		try {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					if(future.isDone()) return; // Cancelled while queued
+					try {
+						future.complete(transfer.call());
+					}
+					catch(Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		}
+		catch(RuntimeException e) {
+			future.completeExceptionally(e); // Executor rejected the transfer
+		}
+		return future;
+	}
+
+	// Virtual thread per transfer on Java 21 and later, cached daemon threads before.
+	// Looked up reflectively so the client still builds for Java 8
+	static Executor defaultExecutor() {
+
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "robot-transfer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	// Transfer run on a thread of the executor, cancelled from any thread
+	private abstract class Transfer<T> {
+		private volatile Connection connection; // Connection to baryk, null until the transfer opens it
+		private volatile boolean cancelled = false;
+
+		abstract T call() throws IOException;
+
+		// Open the connection of this transfer to host
+		Connection connect(String host) throws IOException {
+			Connection connection = new Connection(host);
+
+			connection.idleTimeout = RobotClient.this.timeout;
+			this.connection = connection;
+			if(this.cancelled) connection.cancel(); // Cancelled while resolving
+			return connection;
+		}
+
+		// Wake the transfer, its session aborts and closes the connection
+		void cancel() {
+			this.cancelled = true;
+
+			Connection connection = this.connection;
+			if(connection != null) connection.cancel();
+		}
+	}
+}
@@ -0,0 +1,259 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Long running JVM doing transfers for thin clients, so start-up, class loading and JIT warm-up
+// are paid once. Clients connect to a TCP socket on loopback and send the token the daemon wrote to
+// -Drobot.daemon.token (readable by its owner only) on the first line and the job on the second:
+//   PHOTO <host[:port]> <photo file>  or  FIRMWARE <host[:port]> <firmware file>
+// answered with OK <file> <payload bytes> <ms> or ERROR <message> when the transfer ends.
+// Files are relative to the spool directory -Drobot.daemon.spool, absolute paths and .. are refused.
+// -Drobot.daemon.port sets the port (0 keeps the CLI from looking for a daemon),
+// -Drobot.daemon.workers the number of transfers running at once
+class RobotDaemon implements Runnable {
+
+	public static final int PORT = Integer.getInteger("robot.daemon.port", 4001);
+	public static final int WORKERS = Integer.getInteger("robot.daemon.workers", 8);
+	public static final File SPOOL = new File(System.getProperty("robot.daemon.spool", new File(System.getProperty("user.home"), "robot-spool").getPath())); // Only place jobs read and write files
+	public static final File TOKEN = new File(System.getProperty("robot.daemon.token", new File(System.getProperty("user.home"), ".robot-daemon-token").getPath())); // Secret a client proves it runs as the owner with
+
+	private static final int CONNECT_TIMEOUT = 200; // Time in ms the CLI waits for the daemon to accept
+	private static final int REQUEST_TIMEOUT = 5 * CONNECT_TIMEOUT; // Time in ms a client has to send each request line
+	private static final int LINE_LENGTH = 4096; // Longest request line in chars
+	private static final int TOKEN_BYTES = 16; // Random bytes of the token
+
+	// Receive buffers stay with their worker thread from job to job
+	private static final ThreadLocal<BufferPool> pools = new ThreadLocal<BufferPool>() {
+		protected BufferPool initialValue() {
+			return new BufferPool(PhotoPacket.MAX_LENGTH);
+		}
+	};
+
+	private ServerSocket server;
+	private ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+	private File spool; // Canonical SPOOL
+	private byte[] token; // Expected first line of every client
+
+	public RobotDaemon(int port) throws IOException {
+		if(!SPOOL.isDirectory() && !SPOOL.mkdirs()) throw new IOException("Cannot create spool directory " + SPOOL);
+		this.spool = SPOOL.getCanonicalFile();
+		this.token = newToken().getBytes("UTF-8");
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	// Write a fresh random token to TOKEN, readable and writable by the owner only
+	private static String newToken() throws IOException {
+		byte[] random = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(random);
+		String token = PhotoPacket.bytesToHex(random);
+
+		Path path = TOKEN.toPath();
+		Files.deleteIfExists(path);
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch(UnsupportedOperationException e) {
+			// Not a POSIX file system, narrow what the platform lets us
+			Files.createFile(path);
+			File file = path.toFile();
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+		}
+		Files.write(path, token.getBytes("UTF-8"));
+
+		return token;
+	}
+
+	// Accept jobs until the control socket is closed
+	public void run() {
+		Log.info("Daemon listening on " + this.server.getLocalSocketAddress() + " with " + WORKERS + " workers, spool " + this.spool);
+
+		try {
+			while(true) {
+				final Socket client = this.server.accept();
+
+				this.workers.execute(new Runnable() {
+					public void run() {
+						serve(client);
+					}
+				});
+			}
+		}
+		catch(IOException e) {
+			if(!this.server.isClosed()) Log.error("Daemon stopped: " + e);
+		}
+		finally {
+			this.workers.shutdown();
+		}
+	}
+
+	public void close() throws IOException {
+		this.server.close();
+	}
+
+	public int port() {
+		return this.server.getLocalPort();
+	}
+
+	// Run the job of one client and answer it. A client that is slow to send its request or sends
+	// overlong lines is dropped before it can hold a worker
+	private void serve(Socket client) {
+
+		try {
+			client.setSoTimeout(REQUEST_TIMEOUT);
+			Reader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+			Writer out = new OutputStreamWriter(client.getOutputStream(), "UTF-8");
+			String token = readLine(in);
+
+			if(token == null || !MessageDigest.isEqual(this.token, token.getBytes("UTF-8"))) {
+				out.write("ERROR Bad token\n");
+			} else {
+				String line = readLine(in);
+				out.write((line == null ? "ERROR Empty job" : execute(line)) + "\n");
+			}
+			out.flush();
+		}
+		catch(IOException e) {
+			Log.info("Control connection failed: " + e.getMessage());
+		}
+		finally {
+			try {
+				client.close();
+			}
+			catch(IOException e) {}
+		}
+	}
+
+	// Line of at most LINE_LENGTH chars without its line break, null at the end of the stream
+	static String readLine(Reader in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+
+		while((c = in.read()) != '\n') {
+			if(c == -1) return line.length() == 0 ? null : line.toString();
+			if(line.length() == LINE_LENGTH) throw new IOException("Request line longer than " + LINE_LENGTH + " chars");
+			line.append((char) c);
+		}
+
+		if(line.length() > 0 && line.charAt(line.length() - 1) == '\r') line.setLength(line.length() - 1);
+		return line.toString();
+	}
+
+	// Run one job line, return the answer
+	String execute(String line) {
+		String[] job = line.split(" ", 3);
+
+		if(job.length != 3 || !(job[0].equals("PHOTO") || job[0].equals("FIRMWARE"))) return "ERROR Bad job " + line;
+
+		File file = spooled(this.spool, job[2]);
+		if(file == null) return "ERROR Not in spool " + job[2];
+
+		long start = System.nanoTime();
+		Connection connection = null;
+
+		try {
+			FirmwareImage image = job[0].equals("FIRMWARE") ? new FirmwareImage(file.getPath()) : null;
+			connection = new Connection(job[1], pools.get());
+
+			if(image == null) {
+				connection.init(Robot.DOWNLOAD);
+				new PhotoClient(connection, file.getPath()).run();
+			} else {
+				connection.init(Robot.UPLOAD);
+				new FirmwareSender(connection, image).run();
+			}
+
+			TransferMetrics.writeSummary();
+			return "OK " + job[2] + " " + connection.metrics.getPayloadBytes() + " " + (System.nanoTime() - start) / 1000000;
+		}
+		catch(UnknownHostException e) {
+			return "ERROR Unknown host " + job[1];
+		}
+		catch(FileNotFoundException e) {
+			return "ERROR File not found " + job[2];
+		}
+		catch(IOException e) {
+			return "ERROR " + e;
+		}
+		finally {
+			// A session that failed never handed its channel to the lingerer
+			if(connection != null) connection.discard();
+		}
+	}
+
+	// File name relative to the canonical spool, null if it is absolute, has .. or leaves the spool by a link
+	static File spooled(File spool, String name) {
+		File relative = new File(name);
+		if(relative.isAbsolute() || name.isEmpty()) return null;
+
+		for (File part = relative; part != null; part = part.getParentFile()) {
+			if(part.getName().equals("..")) return null;
+		}
+
+		try {
+			File file = new File(spool, name).getCanonicalFile();
+			return file.getPath().startsWith(spool.getPath() + File.separator) ? file : null;
+		}
+		catch(IOException e) {
+			return null;
+		}
+	}
+
+	// Hand the CLI arguments of a photo or firmware transfer to a running daemon and print its answer,
+	// false when there is no daemon and the transfer has to run in this process
+	public static boolean submit(String[] args) throws IOException {
+		if(PORT == 0 || !TOKEN.canRead()) return false;
+
+		// The daemon only touches files in its spool, anything else is transferred here
+		File spool = SPOOL.getCanonicalFile();
+		File file = new File(args.length == 1 ? "fotka.png" : args[1]).getCanonicalFile();
+		if(!file.getPath().startsWith(spool.getPath() + File.separator)) return false;
+
+		String name = file.getPath().substring(spool.getPath().length() + 1);
+		String job = (args.length == 1 ? "PHOTO " : "FIRMWARE ") + args[0] + " " + name;
+		String token = new String(Files.readAllBytes(TOKEN.toPath()), "UTF-8").trim();
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), CONNECT_TIMEOUT);
+		}
+		catch(IOException e) {
+			socket.close();
+			return false;
+		}
+
+		Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+		out.write(token + "\n" + job + "\n");
+		out.flush();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+		String answer = in.readLine();
+		socket.close();
+
+		System.out.println(answer == null ? "ERROR Daemon closed the connection" : answer);
+		return true;
+	}
+}
@@ -0,0 +1,382 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// Robot side of the protocol on loopback: SYN, photo download, firmware upload and FIN,
+// with every datagram passed through a seeded Impairment
+public class RobotSimulator implements Runnable {
+
+	private static final int SYN = 4; // SYN flag
+	private static final int FIN = 2; // FIN flag
+	private static final int DOWNLOAD = 1; // Download a photo
+	private static final int UPLOAD = 2; // Upload firmware
+	private static final int WINDOW = 2048; // Width of a sliding window in bytes
+	private static final int SEGMENT = 255; // Data bytes in one packet
+	private static final long TIMEOUT = 100000000; // Robot retransmission timeout in ns
+	private static final int RETRIES = 20; // Timeouts before robot gives a session up
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private byte[] photo; // Photo sent on every download
+	private Impairment impairment;
+	private String output; // Directory for uploaded firmware, null to keep it in memory only
+	private Map<Integer, Sim> sessions = new HashMap<Integer, Sim>(); // Sessions by conNum
+	private PriorityQueue<Delayed> outbound = new PriorityQueue<Delayed>(); // Datagrams held by the impairment
+	private long[] times = new long[2]; // Scratch for Impairment.schedule
+	private long scheduled = 0; // Datagrams handed to the impairment, keeps equal delivery times in order
+	private volatile boolean stopped = false;
+	private volatile byte[] lastFirmware; // Last completely uploaded firmware
+	private volatile int completed = 0; // Finished sessions
+
+	public RobotSimulator(int port, byte[] photo, Impairment impairment, String output) throws IOException {
+		this.photo = photo;
+		this.impairment = impairment;
+		this.output = output;
+		this.channel = DatagramChannel.open();
+		this.channel.socket().setReceiveBufferSize(1 << 20);
+		this.channel.bind(new InetSocketAddress("127.0.0.1", port));
+		this.channel.configureBlocking(false);
+		this.selector = Selector.open();
+		this.channel.register(this.selector, SelectionKey.OP_READ);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = Connection.PORT;
+		byte[] photo = null;
+		int size = 100000;
+		String spec = "";
+		String output = ".";
+
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if(args[i].equals("-port")) port = Integer.parseInt(args[i + 1]);
+			else if(args[i].equals("-photo")) photo = read(args[i + 1]);
+			else if(args[i].equals("-size")) size = Integer.parseInt(args[i + 1]);
+			else if(args[i].equals("-impair")) spec = args[i + 1];
+			else if(args[i].equals("-out")) output = args[i + 1];
+			else {
+				System.out.println("Usage: java robot.RobotSimulator [-port 4000] [-photo <file> | -size <bytes>]");
+				System.out.println("       [-impair loss=0.05,dup=0.01,reorder=0.02,delay=10,jitter=5,bandwidth=200000,seed=1]");
+				System.out.println("       [-out <firmware directory>]");
+				return;
+			}
+		}
+
+		Impairment impairment = Impairment.parse(spec);
+		if(photo == null) photo = randomPhoto(size, impairment.seed);
+
+		RobotSimulator simulator = new RobotSimulator(port, photo, impairment, output);
+		Log.info("Simulated robot on 127.0.0.1:" + simulator.port() + " photo " + photo.length + " bytes, " + impairment);
+		simulator.run();
+	}
+
+	// Random photo contents, the same for the same seed
+	public static byte[] randomPhoto(int size, long seed) {
+		byte[] photo = new byte[size];
+		new Random(seed).nextBytes(photo);
+		return photo;
+	}
+
+	private static byte[] read(String filename) throws IOException {
+		FileInputStream in = new FileInputStream(filename);
+		byte[] bytes = new byte[(int) in.getChannel().size()];
+		int read = 0;
+
+		while(read < bytes.length) {
+			int n = in.read(bytes, read, bytes.length - read);
+			if(n < 0) break;
+			read += n;
+		}
+		in.close();
+		return bytes;
+	}
+
+	// Port the simulator listens on
+	public int port() {
+		return this.channel.socket().getLocalPort();
+	}
+
+	public byte[] lastFirmware() {
+		return this.lastFirmware;
+	}
+
+	// Forget the last firmware, so the next one seen is from a later upload
+	public void clearLastFirmware() {
+		this.lastFirmware = null;
+	}
+
+	public int completed() {
+		return this.completed;
+	}
+
+	// Serve sessions until close
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocate(PhotoPacket.MAX_LENGTH);
+
+		try {
+			while(!this.stopped) {
+				long now = System.nanoTime();
+				long next = flush(now);
+				next = Math.min(next, expire(now));
+
+				long wait = Math.max(1, Math.min(100, (next - now) / 1000000));
+				this.selector.select(wait);
+				this.selector.selectedKeys().clear();
+
+				SocketAddress client;
+				while((client = this.channel.receive(buffer)) != null) {
+					buffer.flip();
+					if(!this.impairment.drop() && buffer.limit() >= PhotoPacket.HEADER_LENGTH) {
+						handle(buffer, client, System.nanoTime());
+					}
+					buffer.clear();
+				}
+			}
+
+			this.selector.close();
+			this.channel.close();
+		}
+		catch(IOException e) {
+			if(!this.stopped) Log.error("Simulator failed: " + e);
+		}
+	}
+
+	// Stop serving, run returns shortly after
+	public void close() {
+		this.stopped = true;
+		this.selector.wakeup();
+	}
+
+	// Dispatch one datagram from a client
+	private void handle(ByteBuffer datagram, SocketAddress client, long now) throws IOException {
+		int conNum = datagram.getInt(0);
+		int seqNum = datagram.getChar(4);
+		int ackNum = datagram.getChar(6);
+		int signs = datagram.get(8) & 0xFF;
+		int length = datagram.limit() - PhotoPacket.HEADER_LENGTH;
+
+		if(signs == SYN) {
+			if(conNum != 0 || length != 1) return;
+			int command = datagram.get(PhotoPacket.HEADER_LENGTH);
+			if(command != DOWNLOAD && command != UPLOAD) return;
+
+			Sim sim = new Sim(this.impairment.nextConNum(), command, client, now);
+			this.sessions.put(sim.conNum, sim);
+			send(sim, 0, 0, SYN, new byte[] {(byte) command}, 0, 1, now);
+			if(command == DOWNLOAD) sendPhoto(sim, now);
+			return;
+		}
+
+		Sim sim = this.sessions.get(conNum);
+		if(sim == null) return;
+
+		if(sim.command == DOWNLOAD) {
+			if(signs == FIN) {
+				complete(sim, now);
+				return;
+			}
+
+			int ack = (int) SerialNumber.unwrap(sim.base, ackNum);
+			if(ack > sim.base && ack <= sim.next) {
+				sim.base = ack;
+				sim.retries = 0;
+				sendPhoto(sim, now);
+			}
+			return;
+		}
+
+		if(signs == FIN) {
+			send(sim, sim.expected, 0, FIN, null, 0, 0, now);
+			if(!sim.done) {
+				byte[] firmware = new byte[sim.expected];
+				System.arraycopy(sim.firmware, 0, firmware, 0, sim.expected);
+				this.lastFirmware = firmware;
+				if(this.output != null) save(sim, firmware);
+				complete(sim, now);
+			}
+			return;
+		}
+
+		if(sim.done || length <= 0) return;
+
+		int offset = (int) SerialNumber.unwrap(sim.expected, seqNum);
+		if(offset == sim.expected) {
+			store(sim, offset, datagram, length);
+			sim.expected += length;
+
+			// Pull segments received out of order
+			byte[] held;
+			while((held = sim.held.remove(sim.expected)) != null) {
+				ensure(sim, sim.expected + held.length);
+				System.arraycopy(held, 0, sim.firmware, sim.expected, held.length);
+				sim.expected += held.length;
+			}
+		}
+		else if(offset > sim.expected && offset < sim.expected + WINDOW && !sim.held.containsKey(offset)) {
+			byte[] held = new byte[length];
+			datagram.position(PhotoPacket.HEADER_LENGTH);
+			datagram.get(held);
+			sim.held.put(offset, held);
+		}
+
+		send(sim, 0, sim.expected, 0, null, 0, 0, now);
+	}
+
+	// Send photo segments fitting into the window, or FIN when everything is acked
+	private void sendPhoto(Sim sim, long now) throws IOException {
+
+		while(sim.next < this.photo.length) {
+			int length = Math.min(SEGMENT, this.photo.length - sim.next);
+			if(sim.next + length > sim.base + WINDOW) break;
+
+			send(sim, sim.next, 0, 0, this.photo, sim.next, length, now);
+			sim.next += length;
+		}
+
+		if(sim.base == this.photo.length) send(sim, this.photo.length, 0, FIN, null, 0, 0, now);
+		sim.deadline = now + TIMEOUT;
+	}
+
+	// Resend the photo window of sessions whose timeout expired, return the next deadline
+	private long expire(long now) throws IOException {
+		long next = Long.MAX_VALUE;
+
+		for (Iterator<Sim> it = this.sessions.values().iterator(); it.hasNext();) {
+			Sim sim = it.next();
+
+			if(sim.done || sim.command != DOWNLOAD) {
+				if(sim.done && now - sim.finishedAt > 10 * TIMEOUT) it.remove();
+				continue;
+			}
+
+			if(sim.deadline <= now) {
+				if(++sim.retries > RETRIES) {
+					it.remove();
+					continue;
+				}
+
+				for (int offset = sim.base; offset < sim.next; offset += SEGMENT) {
+					send(sim, offset, 0, 0, this.photo, offset, Math.min(SEGMENT, this.photo.length - offset), now);
+				}
+				if(sim.base == this.photo.length) send(sim, this.photo.length, 0, FIN, null, 0, 0, now);
+				sim.deadline = now + TIMEOUT;
+			}
+
+			next = Math.min(next, sim.deadline);
+		}
+
+		return next;
+	}
+
+	private void complete(Sim sim, long now) {
+		if(sim.done) return;
+
+		sim.done = true;
+		sim.finishedAt = now;
+		this.completed++;
+		Log.info("SIM: " + (sim.command == DOWNLOAD ? "photo" : "firmware") + " " + Integer.toHexString(sim.conNum)
+				+ " done in " + (now - sim.startedAt) / 1000000 + " ms");
+	}
+
+	private void save(Sim sim, byte[] firmware) throws IOException {
+		FileOutputStream out = new FileOutputStream(this.output + "/firmware-" + Integer.toHexString(sim.conNum) + ".bin");
+		out.write(firmware);
+		out.close();
+	}
+
+	private void store(Sim sim, int offset, ByteBuffer datagram, int length) {
+		ensure(sim, offset + length);
+		datagram.position(PhotoPacket.HEADER_LENGTH);
+		datagram.get(sim.firmware, offset, length);
+	}
+
+	private void ensure(Sim sim, int size) {
+		if(size <= sim.firmware.length) return;
+
+		byte[] grown = new byte[Math.max(size, sim.firmware.length * 2)];
+		System.arraycopy(sim.firmware, 0, grown, 0, sim.expected);
+		sim.firmware = grown;
+	}
+
+	// Encode packet and hand it to the impairment
+	private void send(Sim sim, int seqNum, int ackNum, int signs, byte[] data, int offset, int length, long now) {
+		ByteBuffer frame = PhotoPacket.encode(ByteBuffer.allocate(PhotoPacket.HEADER_LENGTH + length), sim.conNum, seqNum, ackNum, signs);
+		if(data != null) frame.put(data, offset, length);
+		frame.flip();
+
+		int copies = this.impairment.schedule(now, frame.limit(), this.times);
+		for (int i = 0; i < copies; i++) {
+			this.outbound.add(new Delayed(this.times[i], this.scheduled++, i == 0 ? frame : frame.duplicate(), sim.client));
+		}
+	}
+
+	// Send datagrams whose time has come, return time of the next one
+	private long flush(long now) throws IOException {
+		Delayed delayed;
+
+		while((delayed = this.outbound.peek()) != null && delayed.at <= now) {
+			this.outbound.poll();
+			this.channel.send(delayed.frame, delayed.client);
+		}
+
+		return delayed == null ? Long.MAX_VALUE : delayed.at;
+	}
+
+	// One robot session
+	private static class Sim {
+		int conNum;
+		int command; // DOWNLOAD or UPLOAD
+		SocketAddress client;
+		long startedAt; // SYN received in ns
+		long finishedAt; // FIN exchanged in ns
+		boolean done = false;
+		int base = 0; // Photo bytes acked by client
+		int next = 0; // Photo offset to send next
+		long deadline; // Photo retransmission time in ns
+		int retries = 0; // Timeouts without progress
+		int expected = 0; // Firmware bytes received in order
+		byte[] firmware = new byte[4096]; // Firmware received in order
+		Map<Integer, byte[]> held = new HashMap<Integer, byte[]>(); // Firmware segments received out of order
+
+		Sim(int conNum, int command, SocketAddress client, long now) {
+			this.conNum = conNum;
+			this.command = command;
+			this.client = client;
+			this.startedAt = now;
+		}
+	}
+
+	// Datagram waiting for its delivery time
+	private static class Delayed implements Comparable<Delayed> {
+		long at;
+		long order; // Scheduling order among datagrams due at the same time
+		ByteBuffer frame;
+		SocketAddress client;
+
+		Delayed(long at, long order, ByteBuffer frame, SocketAddress client) {
+			this.at = at;
+			this.order = order;
+			this.frame = frame;
+			this.client = client;
+		}
+
+		public int compareTo(Delayed other) {
+			if(this.at != other.at) return this.at < other.at ? -1 : 1;
+			return this.order < other.order ? -1 : this.order > other.order ? 1 : 0;
+		}
+	}
+}
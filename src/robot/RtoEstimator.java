@@ -0,0 +1,76 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// Retransmission timeout from smoothed RTT and its variation as in RFC 6298
+class RtoEstimator {
+
+	public static final int MIN_RTO = Integer.getInteger("robot.rto.min", 20); // Floor in ms
+	public static final int MAX_RTO = Integer.getInteger("robot.rto.max", 2000); // Ceiling in ms
+	public static final int INITIAL_RTO = Integer.getInteger("robot.rto.initial", 100); // RTO before first sample in ms
+
+	private static final int MAX_BACKOFF = 16; // Doublings are capped by the ceiling long before this
+
+	private int minRto; // Floor in ms
+	private int maxRto; // Ceiling in ms
+	private long rtt = -1; // Last RTT sample in us, -1 before first sample
+	private long srtt = -1; // Smoothed RTT in us
+	private long rttvar = 0; // RTT variation in us
+	private int baseRto; // RTO from samples without backoff in ms
+	private int backoff = 0; // Timeouts since the last sample
+
+	public RtoEstimator() {
+		this(MIN_RTO, MAX_RTO);
+	}
+
+	public RtoEstimator(int minRto, int maxRto) {
+		this.minRto = minRto;
+		this.maxRto = maxRto;
+		this.baseRto = clamp(INITIAL_RTO);
+	}
+
+	// Add RTT sample of a segment that was not retransmitted
+	public void sample(long nanos) {
+		long rtt = nanos / 1000;
+
+		if(this.srtt < 0) {
+			this.srtt = rtt;
+			this.rttvar = rtt / 2;
+		} else {
+			this.rttvar = (3 * this.rttvar + Math.abs(this.srtt - rtt)) / 4;
+			this.srtt = (7 * this.srtt + rtt) / 8;
+		}
+
+		this.rtt = rtt;
+		this.baseRto = clamp((this.srtt + Math.max(1000, 4 * this.rttvar) + 999) / 1000);
+		this.backoff = 0;
+	}
+
+	// Double the RTO after a timeout
+	public void backoff() {
+		if(this.backoff < MAX_BACKOFF) this.backoff++;
+	}
+
+	// Current RTO in ms
+	public int rto() {
+		return clamp((long) this.baseRto << this.backoff);
+	}
+
+	// Last RTT sample in us, -1 before the first one
+	public long rtt() {
+		return this.rtt;
+	}
+
+	// Smoothed RTT in us, -1 before the first sample
+	public long srtt() {
+		return this.srtt;
+	}
+
+	private int clamp(long rto) {
+		return (int) Math.max(this.minRto, Math.min(this.maxRto, rto));
+	}
+
+	public String toString() {
+		return "RTT: " + (this.rtt / 1000.0) + " ms SRTT: " + (this.srtt / 1000.0) + " ms RTO: " + rto() + " ms";
+	}
+}
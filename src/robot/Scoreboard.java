@@ -0,0 +1,88 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// Segments in flight from FirmwareSender with their send times and retransmission timers
+class Scoreboard {
+
+	public static final int SLOTS = 16; // Power of two, more than the segments fitting the 2048 byte window
+	private static final int MASK = SLOTS - 1;
+	private static final long TICK = 1000000; // Timer resolution in ns
+
+	private long[] sentAt = new long[SLOTS]; // Last transmission of every slot in ns
+	private long[] firstSentAt = new long[SLOTS]; // First transmission of every slot in ns
+	private boolean[] retransmitted = new boolean[SLOTS]; // Slot was sent more than once
+	private int[] segment = new int[SLOTS]; // Segment index held by every slot
+	private TimerWheel timers = new TimerWheel(SLOTS, 256, TICK); // Retransmission timer of every slot
+	private int[] expired = new int[SLOTS]; // Scratch array for expired slots
+	private int first = 0; // Oldest segment not acknowledged
+	private int next = 0; // Segment after the newest one sent
+
+	// Record transmission of segment at time now, its timer fires after rto ms
+	public void sent(int index, long now, int rto) {
+		int slot = index & MASK;
+
+		if(index >= this.next) {
+			this.next = index + 1;
+			this.retransmitted[slot] = false;
+			this.firstSentAt[slot] = now;
+		}
+		else this.retransmitted[slot] = true;
+
+		this.segment[slot] = index;
+		this.sentAt[slot] = now;
+		this.timers.schedule(slot, now + rto * TICK);
+	}
+
+	// Acknowledge all segments before index and record their delivery times,
+	// return RTT in ns of the newest one sent only once, or -1
+	public long ack(int index, long now, TransferMetrics metrics) {
+		long rtt = -1;
+
+		while(this.first < index && this.first < this.next) {
+			int slot = this.first & MASK;
+
+			this.timers.cancel(slot);
+			if(!this.retransmitted[slot]) rtt = now - this.sentAt[slot];
+			metrics.delivery((now - this.firstSentAt[slot]) / 1000);
+			this.first++;
+		}
+
+		if(this.first < index) this.first = index;
+		return rtt;
+	}
+
+	// Collect segment indexes whose timers expired at time now into out, return their count
+	public int expired(long now, int[] out) {
+		int count = this.timers.expire(now, this.expired);
+
+		for (int i = 0; i < count; i++) {
+			out[i] = this.segment[this.expired[i]];
+		}
+		return count;
+	}
+
+	// Stop the timers of segments from index on, they are resent as the window opens again.
+	// An ack covering them may answer either transmission, so it is not timed
+	public void lost(int index) {
+		for (int i = Math.max(index, this.first); i < this.next; i++) {
+			this.timers.cancel(i & MASK);
+			this.retransmitted[i & MASK] = true;
+		}
+	}
+
+	// Time of the next retransmission timeout in ns, Long.MAX_VALUE if nothing is in flight
+	public long nextDeadline() {
+		return this.timers.nextDeadline();
+	}
+
+	// Segment after the newest one sent
+	public int next() {
+		return this.next;
+	}
+
+	// Oldest segment not acknowledged
+	public int first() {
+		return this.first;
+	}
+}
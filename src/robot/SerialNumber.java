@@ -0,0 +1,17 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// Serial number arithmetic (RFC 1982) for the 16 bit seqNum and ackNum. A number on the wire is
+// unwrapped into the 64 bit stream offset closest to a reference offset, normally the window start.
+// This holds over any number of wraps while the peer stays within 32 KB of the reference,
+// and the 2048 byte window keeps it far closer
+final class SerialNumber {
+
+	private SerialNumber() {}
+
+	// Stream offset of 16 bit serial nearest to reference
+	public static long unwrap(long reference, int serial) {
+		return reference + (short) (serial - (int) reference);
+	}
+}
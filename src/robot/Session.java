@@ -0,0 +1,85 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+// Transfer driven packet by packet, so the same logic runs blocking or on a Selector
+abstract class Session {
+
+	protected Connection connection; // Connection object for this session
+	protected boolean done = false; // Session finished
+	private boolean failed = false; // Session ended by abort
+	private long heardAt; // Time baryk was last heard from in ns
+
+	// Called once SYN from baryk has been received
+	abstract void start() throws IOException;
+
+	// Handle one packet received from baryk
+	abstract void receive(PhotoPacket ppacket) throws IOException;
+
+	// Handle expired receive timeout
+	abstract void timeout() throws IOException;
+
+	// Called when no more packets are queued for the session
+	void drained() throws IOException {}
+
+	// Receive timeout in ms, 0 means wait forever
+	int receiveTimeout() {
+		return 0;
+	}
+
+	// Baryk sent a packet of this session, restart the idle deadline
+	protected void heard() {
+		this.heardAt = this.connection.clock.nanoTime();
+	}
+
+	// Receive timeout in ms cut short by the idle deadline, 0 waits forever
+	protected int idle(int timeout) {
+		if(this.connection.idleTimeout <= 0) return timeout;
+
+		long left = this.heardAt + this.connection.idleTimeout * 1000000L - this.connection.clock.nanoTime();
+		int idle = (int) Math.max(1, (left + 999999) / 1000000);
+		return timeout == 0 ? idle : Math.min(timeout, idle);
+	}
+
+	// Fail once baryk has been silent for the idle timeout
+	protected void checkIdle() throws SocketTimeoutException {
+		if(this.connection.idleTimeout <= 0) return;
+
+		if(this.connection.clock.nanoTime() - this.heardAt >= this.connection.idleTimeout * 1000000L) {
+			throw new SocketTimeoutException("Nothing from baryk for " + this.connection.idleTimeout + " ms");
+		}
+	}
+
+	// Mark session done and close its metrics
+	protected void finish() {
+		this.done = true;
+		this.connection.metrics.finished(this.connection.clock.nanoTime());
+	}
+
+	// Session failed or was cancelled: release what it holds, record the failure and drop the connection
+	// unless the lingerer took it over. Nothing happens once the session is done
+	void abort(String reason) {
+		if(this.done) return;
+
+		this.failed = true;
+		this.connection.metrics.failed(reason);
+		finish();
+		this.connection.discard();
+	}
+
+	public boolean isDone() {
+		return this.done;
+	}
+
+	// Session ended by abort
+	public boolean failed() {
+		return this.failed;
+	}
+
+	public Connection getConnection() {
+		return this.connection;
+	}
+}
@@ -0,0 +1,314 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+// Runs many sessions on one thread, packets are demultiplexed by conNum
+class SessionSelector {
+
+	private Selector selector;
+	private Map<InetSocketAddress, Endpoint> endpoints = new HashMap<InetSocketAddress, Endpoint>(); // One channel per robot
+	private ArrayList<Entry> entries = new ArrayList<Entry>(); // All sessions not yet done
+	private BufferPool pool = new BufferPool(PhotoPacket.MAX_LENGTH); // Receive buffers shared by all sessions
+	private PhotoPacket received = new PhotoPacket(); // View of the packet being dispatched
+	private FleetScheduler scheduler; // Told when a session ends, null if none
+
+	private static final int RST = 1; // RST flag
+	private static final long NONE = Long.MAX_VALUE; // No timeout armed
+
+	public SessionSelector() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	public void setScheduler(FleetScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	// Create connection to baryk sharing the robot's channel, host may include :port. With more addresses
+	// the channel stays unconnected, SYNs race to all of them and the first one answering gets the channel
+	public Connection connect(String host) throws IOException {
+		InetSocketAddress[] candidates;
+
+		try {
+			candidates = AddressCache.resolve(host);
+		}
+		catch(UnknownHostException e) {
+			throw new IOException("Unknown host " + host);
+		}
+
+		Endpoint endpoint = this.endpoints.get(candidates[0]);
+
+		if(endpoint == null) {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			if(candidates.length == 1) channel.connect(candidates[0]);
+			endpoint = new Endpoint(channel);
+			channel.register(this.selector, SelectionKey.OP_READ, endpoint);
+			this.endpoints.put(candidates[0], endpoint);
+		}
+
+		return new Connection(candidates, endpoint.channel, this.pool);
+	}
+
+	// Add session and start its handshake
+	public void add(Session session, byte[] command) throws IOException {
+		Connection connection = session.getConnection();
+		Entry entry = new Entry(session, command[0], endpoint(connection));
+
+		entry.syn = connection.synPacket(command);
+		connection.sendSyn(entry.syn, false);
+		entry.deadline = millis() + Connection.jitter(connection.rto.rto());
+
+		entry.endpoint.pending.add(entry);
+		this.entries.add(entry);
+	}
+
+	private Endpoint endpoint(Connection connection) {
+		for (Endpoint endpoint : this.endpoints.values()) {
+			if(endpoint.channel == connection.channel) return endpoint;
+		}
+		throw new IllegalArgumentException("Connection not created by this selector");
+	}
+
+	// Serve all sessions until every one of them is done
+	public void run() throws IOException {
+
+		while(!this.entries.isEmpty()) {
+			long wait = expire(millis());
+
+			if(this.entries.isEmpty()) break;
+			this.selector.select(wait);
+
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				Endpoint endpoint = (Endpoint) key.attachment();
+
+				// Drain everything queued on the channel
+				while(true) {
+					ByteBuffer buffer = this.pool.acquire();
+					SocketAddress source = endpoint.channel.receive(buffer);
+					if(source == null) {
+						this.pool.release(buffer);
+						break;
+					}
+
+					buffer.flip();
+					if(buffer.limit() < PhotoPacket.HEADER_LENGTH) {
+						this.pool.release(buffer); // Too short to carry a header
+						continue;
+					}
+
+					this.received.wrap(buffer, this.pool);
+					PacketLog.received(buffer);
+					dispatch(endpoint, this.received, source);
+					this.received.recycle();
+				}
+
+				for (int i = endpoint.sessions.size() - 1; i >= 0; i--) {
+					Entry entry = endpoint.sessions.get(i);
+					try {
+						entry.session.drained();
+					}
+					catch(IOException e) {
+						fail(entry, e);
+					}
+				}
+			}
+		}
+
+		// Sessions may still linger on the channels, the lingerer closes them once they are released
+		this.selector.close();
+		for (Endpoint endpoint : this.endpoints.values()) {
+			Lingerer.adopt(endpoint.channel);
+		}
+	}
+
+	// Hand packet from source over to the session owning its conNum
+	private void dispatch(Endpoint endpoint, PhotoPacket ppacket, SocketAddress source) throws IOException {
+		Entry entry = endpoint.find(ppacket.conNum());
+
+		if(entry == null) {
+			if(ppacket.fin()) Lingerer.fin(ppacket.conNum()); // Session ended, the lingerer may be waiting for it
+			if(!ppacket.syn() || ppacket.dataLength() == 0) return;
+
+			// New conNum, pair it with the oldest handshake waiting for this command
+			for (Iterator<Entry> it = endpoint.pending.iterator(); it.hasNext();) {
+				Entry pending = it.next();
+				if(pending.command != ppacket.data(0)) continue;
+
+				if(!endpoint.channel.isConnected()) race(endpoint, (InetSocketAddress) source);
+				it.remove();
+				pending.session.getConnection().metrics.received(ppacket.dataLength() + PhotoPacket.HEADER_LENGTH);
+				pending.session.getConnection().established(ppacket.conNum());
+				pending.established = true;
+				endpoint.sessions.add(pending);
+				try {
+					pending.session.start();
+				}
+				catch(IOException e) {
+					fail(pending, e);
+					return;
+				}
+				rearm(endpoint, pending);
+				return;
+			}
+			return;
+		}
+
+		entry.session.getConnection().metrics.received(ppacket.dataLength() + PhotoPacket.HEADER_LENGTH);
+		if(ppacket.syn()) return; // Duplicate SYN
+		try {
+			entry.session.receive(ppacket);
+		}
+		catch(IOException e) {
+			fail(entry, e);
+			return;
+		}
+		rearm(endpoint, entry);
+	}
+
+	// Session failed on its own, say its file cannot be opened. Reset it and let the other sessions go on
+	private void fail(Entry entry, IOException e) throws IOException {
+		Connection connection = entry.session.getConnection();
+
+		Log.info("Transfer with " + connection.target + " failed: " + e.getMessage());
+		try {
+			connection.send(0, 0, RST);
+		}
+		catch(IOException ignored) {}
+
+		entry.endpoint.sessions.remove(entry);
+		this.entries.remove(entry);
+		entry.session.abort(e.getMessage());
+		if(this.scheduler != null) this.scheduler.failed(entry.session);
+	}
+
+	// First SYN answer on an unconnected channel: connect it to the address that won and send everything
+	// there from now on, answers of the other addresses are filtered out by the channel
+	private void race(Endpoint endpoint, InetSocketAddress winner) throws IOException {
+		endpoint.channel.connect(winner);
+		if(Log.DEBUG_ENABLED) Log.debug("Connected to " + winner);
+
+		for (Entry entry : endpoint.pending) entry.session.getConnection().answeredBy(winner);
+		for (Entry entry : endpoint.sessions) entry.session.getConnection().answeredBy(winner);
+	}
+
+	// Restart session's receive timeout or drop it when it is done
+	private void rearm(Endpoint endpoint, Entry entry) throws IOException {
+
+		if(entry.session.isDone()) {
+			endpoint.sessions.remove(entry);
+			this.entries.remove(entry);
+			if(this.scheduler == null) return;
+			if(entry.session.failed()) this.scheduler.failed(entry.session);
+			else this.scheduler.finished(entry.session);
+			return;
+		}
+
+		int timeout = entry.session.receiveTimeout();
+		entry.deadline = timeout > 0 ? millis() + timeout : NONE;
+	}
+
+	// Fire expired timeouts, return ms to wait for the next one (0 = forever)
+	private long expire(long now) throws IOException {
+		long next = NONE;
+
+		for (int i = this.entries.size() - 1; i >= 0; i--) {
+			Entry entry = this.entries.get(i);
+
+			if(entry.deadline <= now) {
+				Connection connection = entry.session.getConnection();
+
+				if(!entry.established) {
+					if(++entry.attempts == Connection.SYN_RETRIES) {
+						// Robot does not answer, give up on this session only
+						Log.info("No SYN from " + connection.target + " after " + entry.attempts + " attempts. Giving up.");
+						entry.endpoint.pending.remove(entry);
+						this.entries.remove(i);
+						entry.session.abort("No SYN after " + entry.attempts + " attempts");
+						if(this.scheduler != null) this.scheduler.failed(entry.session);
+						continue;
+					}
+
+					connection.metrics.timeout();
+					connection.rto.backoff();
+					if(Log.DEBUG_ENABLED) Log.debug("Timeout occurred. " + connection.rto);
+					connection.sendSyn(entry.syn, true);
+					entry.deadline = now + Connection.jitter(connection.rto.rto());
+				} else {
+					try {
+						entry.session.timeout();
+					}
+					catch(IOException e) {
+						fail(entry, e);
+						continue;
+					}
+					rearm(entry.endpoint, entry);
+					if(entry.session.isDone()) continue;
+				}
+			}
+
+			if(entry.deadline < next) next = entry.deadline;
+		}
+
+		if(next == NONE) return 0;
+		return Math.max(1, next - now);
+	}
+
+	// Monotonic time in ms, deadlines must not move with the wall clock
+	private static long millis() {
+		return System.nanoTime() / 1000000;
+	}
+
+	// Channel shared by all sessions with one robot
+	private static class Endpoint {
+		DatagramChannel channel;
+		ArrayList<Entry> sessions = new ArrayList<Entry>(); // Established sessions
+		LinkedList<Entry> pending = new LinkedList<Entry>(); // Sessions waiting for SYN
+
+		Endpoint(DatagramChannel channel) {
+			this.channel = channel;
+		}
+
+		// Find established session by conNum, a robot serves only a few at once
+		Entry find(int conNum) {
+			for (int i = 0; i < this.sessions.size(); i++) {
+				Entry entry = this.sessions.get(i);
+				if(entry.session.getConnection().conNum == conNum) return entry;
+			}
+			return null;
+		}
+	}
+
+	// Session with its handshake and timeout state
+	private static class Entry {
+		Session session;
+		Endpoint endpoint; // Channel of the session
+		byte command; // Command requested in SYN
+		ByteBuffer syn; // SYN packet to retransmit
+		boolean established = false;
+		int attempts = 1; // SYNs sent
+		long deadline; // Time of the next timeout in ms, NONE if none
+
+		Entry(Session session, byte command, Endpoint endpoint) {
+			this.session = session;
+			this.command = command;
+			this.endpoint = endpoint;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded lock free queue for exactly one producer thread and one consumer thread
+class SpscRing<E> {
+
+	private Object[] slots;
+	private int mask;
+	private AtomicLong head = new AtomicLong(); // Next slot to poll, written by the consumer only
+	private AtomicLong tail = new AtomicLong(); // Next slot to offer into, written by the producer only
+
+	// Capacity is rounded up to a power of two
+	public SpscRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+		this.slots = new Object[size];
+		this.mask = size - 1;
+	}
+
+	// Add element, false when the ring is full. Producer thread only
+	public boolean offer(E element) {
+		long tail = this.tail.get();
+
+		if(tail - this.head.get() == this.slots.length) return false;
+
+		this.slots[(int) tail & this.mask] = element;
+		// Publishes the slot written above. A full volatile write, not lazySet: the producer reads whether the
+		// consumer is parked right after, and that load must not move before this store
+		this.tail.set(tail + 1);
+		return true;
+	}
+
+	// Remove the oldest element, null when the ring is empty. Consumer thread only
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long head = this.head.get();
+
+		if(head == this.tail.get()) return null;
+
+		int slot = (int) head & this.mask;
+		E element = (E) this.slots[slot];
+		this.slots[slot] = null;
+		this.head.lazySet(head + 1);
+		return element;
+	}
+
+	// Number of queued elements, exact only on the consumer or producer thread
+	public int size() {
+		return (int) (this.tail.get() - this.head.get());
+	}
+
+	public int capacity() {
+		return this.slots.length;
+	}
+}
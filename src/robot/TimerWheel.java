@@ -0,0 +1,103 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.util.Arrays;
+
+// Hashed timer wheel over a fixed set of integer timer ids, allocation free
+class TimerWheel {
+
+	private static final int NONE = -1;
+
+	private long tickNanos; // Length of one tick
+	private int mask; // Number of buckets - 1, buckets are a power of two
+	private int[] head; // First timer id in every bucket
+	private int[] next; // Next timer id in the same bucket
+	private int[] prev; // Previous timer id in the same bucket
+	private long[] deadline; // Tick at which the timer fires, NONE if not scheduled
+	private long current = -1; // Last tick processed by expire
+	private int scheduled = 0; // Number of scheduled timers
+
+	public TimerWheel(int timers, int buckets, long tickNanos) {
+		this.tickNanos = tickNanos;
+		this.mask = Integer.highestOneBit(buckets * 2 - 1) - 1;
+		this.head = new int[this.mask + 1];
+		this.next = new int[timers];
+		this.prev = new int[timers];
+		this.deadline = new long[timers];
+
+		Arrays.fill(this.head, NONE);
+		Arrays.fill(this.deadline, NONE);
+	}
+
+	// Fire timer id at given time in ns, replacing its previous schedule
+	public void schedule(int id, long at) {
+		cancel(id);
+
+		long tick = Math.max(at / this.tickNanos, this.current + 1);
+		int bucket = (int) (tick & this.mask);
+
+		this.deadline[id] = tick;
+		this.prev[id] = NONE;
+		this.next[id] = this.head[bucket];
+		if(this.head[bucket] != NONE) this.prev[this.head[bucket]] = id;
+		this.head[bucket] = id;
+		this.scheduled++;
+	}
+
+	// Stop timer id if it is scheduled
+	public void cancel(int id) {
+		if(this.deadline[id] == NONE) return;
+
+		int bucket = (int) (this.deadline[id] & this.mask);
+		if(this.prev[id] != NONE) this.next[this.prev[id]] = this.next[id];
+		else this.head[bucket] = this.next[id];
+		if(this.next[id] != NONE) this.prev[this.next[id]] = this.prev[id];
+
+		this.deadline[id] = NONE;
+		this.scheduled--;
+	}
+
+	// Remove timers due at time now in ns, store their ids in expired and return their count
+	public int expire(long now, int[] expired) {
+		long tick = now / this.tickNanos;
+		int count = 0;
+
+		// First call looks at every bucket, timers may have fallen due before it
+		if(this.current < 0) this.current = tick - this.mask - 1;
+
+		// Visit every bucket passed since the last call, each at most once
+		long from = Math.max(this.current + 1, tick - this.mask);
+		for (long t = from; t <= tick && this.scheduled > 0; t++) {
+			int id = this.head[(int) (t & this.mask)];
+
+			while(id != NONE) {
+				int following = this.next[id];
+				if(this.deadline[id] <= tick) {
+					cancel(id);
+					expired[count++] = id;
+				}
+				id = following;
+			}
+		}
+
+		this.current = Math.max(this.current, tick);
+		return count;
+	}
+
+	// Time of the earliest scheduled timer in ns, Long.MAX_VALUE if none
+	public long nextDeadline() {
+		long earliest = Long.MAX_VALUE;
+
+		for (int id = 0; id < this.deadline.length; id++) {
+			if(this.deadline[id] != NONE && this.deadline[id] < earliest) earliest = this.deadline[id];
+		}
+
+		if(earliest == Long.MAX_VALUE) return earliest;
+		return earliest * this.tickNanos;
+	}
+
+	public boolean isScheduled(int id) {
+		return this.deadline[id] != NONE;
+	}
+}
@@ -0,0 +1,90 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// Bandwidth budget shared by all sessions of the JVM, in bytes per second.
+// -Drobot.fleet.rate=<bytes per second> sets it, 0 (default) sends unlimited. A grant is capped
+// by the sender's fair share of the burst, so one window cannot take the whole budget
+class TokenBucket {
+
+	public static final long RATE = Long.getLong("robot.fleet.rate", 0);
+	public static final long BURST = Long.getLong("robot.fleet.burst", Math.max(RATE / 20, 4 * 264)); // Bytes, 50 ms by default
+	public static final TokenBucket SHARED = new TokenBucket(RATE, BURST);
+
+	private long rate; // Bytes per second, 0 if unlimited
+	private long burst; // Most tokens the bucket holds
+	private long tokens; // Bytes that may be sent now
+	private long refilledAt; // Time of the last refill in ns
+	private int active = 0; // Senders sharing the budget
+
+	public TokenBucket(long rate, long burst) {
+		this(rate, burst, System.nanoTime());
+	}
+
+	// Bucket full at now, in the time of the clock its senders pass to grant
+	public TokenBucket(long rate, long burst, long now) {
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilledAt = now;
+	}
+
+	public boolean enabled() {
+		return this.rate > 0;
+	}
+
+	// Sender starts or stops competing for the budget
+	public synchronized void join() {
+		this.active++;
+	}
+
+	public synchronized void leave() {
+		if(this.active > 0) this.active--;
+	}
+
+	// Senders sharing the budget now
+	synchronized int active() {
+		return this.active;
+	}
+
+	// Bytes out of want that may be sent now, 0 if not even min of them are available
+	public synchronized int grant(int min, int want, long now) {
+		if(this.rate <= 0) return want;
+
+		refill(now);
+		long share = Math.max(min, this.burst / Math.max(1, this.active));
+		long granted = Math.min(Math.min(want, share), this.tokens);
+
+		if(granted < min) return 0;
+		this.tokens -= granted;
+		return (int) granted;
+	}
+
+	// Return bytes granted but not sent
+	public synchronized void refund(int bytes) {
+		if(this.rate > 0) this.tokens = Math.min(this.burst, this.tokens + bytes);
+	}
+
+	// Time in ns until bytes are available, 0 if they are now
+	public synchronized long delay(int bytes, long now) {
+		if(this.rate <= 0) return 0;
+
+		refill(now);
+		if(this.tokens >= bytes) return 0;
+		return (bytes - this.tokens) * 1000000000L / this.rate;
+	}
+
+	private void refill(long now) {
+		if(now - this.refilledAt >= this.burst * 1000000000L / this.rate) {
+			this.tokens = this.burst;
+			this.refilledAt = now;
+			return;
+		}
+
+		long added = (now - this.refilledAt) * this.rate / 1000000000L;
+		if(added == 0) return;
+
+		this.tokens = Math.min(this.burst, this.tokens + added);
+		this.refilledAt += added * 1000000000L / this.rate;
+	}
+}
@@ -0,0 +1,297 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+// Counters and latency histograms of one session, every update also goes to the JVM wide total.
+// Counters are LongAdders since every session thread updates the total. A finished session keeps
+// only the percentiles of its histograms. Latencies are in microseconds
+class TransferMetrics implements TransferMetricsMXBean {
+
+	public static final String FILE = System.getProperty("robot.metrics.file", "./metrics.json"); // Empty for no summary
+	public static final int KEPT = Integer.getInteger("robot.metrics.kept", 1024); // Finished sessions kept for the summary, oldest go first
+
+	private static final TransferMetrics TOTAL = new TransferMetrics(null, "total", null);
+	private static final ConcurrentLinkedQueue<TransferMetrics> finished = new ConcurrentLinkedQueue<TransferMetrics>();
+	private static final AtomicInteger kept = new AtomicInteger(); // Size of finished
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(TOTAL, new ObjectName("robot:type=TransferMetrics"));
+		}
+		catch(Exception e) {
+			Log.info("Transfer metrics not available over JMX: " + e);
+		}
+	}
+
+	private TransferMetrics total; // Aggregate receiving all updates too, null for the total itself
+	public volatile String kind; // photo or firmware
+	private String host; // Robot address
+	public volatile int conNum;
+	public volatile String sha256; // Of the photo received or firmware sent, null if not hashed
+	private volatile String failure; // Why the session failed, null if it did not
+
+	private LongAdder sessions = new LongAdder();
+	private LongAdder failures = new LongAdder(); // Sessions aborted
+	private LongAdder bytesSent = new LongAdder();
+	private LongAdder bytesReceived = new LongAdder();
+	private LongAdder packetsSent = new LongAdder();
+	private LongAdder packetsReceived = new LongAdder();
+	private LongAdder payload = new LongAdder(); // Photo or firmware bytes delivered
+	private LongAdder retransmits = new LongAdder();
+	private LongAdder fastRetransmits = new LongAdder();
+	private LongAdder duplicates = new LongAdder(); // Duplicate segments or duplicate acks
+	private LongAdder timeouts = new LongAdder();
+	private LongAdder dropped = new LongAdder(); // Foreign, malformed or out of window datagrams
+	private LongAdder cwndReductions = new LongAdder(); // Congestion window cuts on loss or timeout
+	private LongAdder pipelineStalls = new LongAdder(); // Receiver thread waits on a full ring
+	private volatile long startedAt; // First SYN in ns
+	private volatile long finishedAt; // Session done in ns
+
+	private Histogram rtt = new Histogram(); // Round trip times
+	private Histogram delivery = new Histogram(); // First send or arrival of a segment until it is acked in order
+	private Histogram handshake = new Histogram(); // First SYN until SYN from baryk
+	private Histogram cwnd = new Histogram(); // Congestion window in segments after every change
+	private Histogram queueDepth = new Histogram(); // Datagrams in the receive pipeline ring when one is taken
+
+	public TransferMetrics(String kind, String host) {
+		this(TOTAL, kind, host);
+	}
+
+	private TransferMetrics(TransferMetrics total, String kind, String host) {
+		this.total = total;
+		this.kind = kind;
+		this.host = host;
+	}
+
+	public void sent(int length) {
+		this.packetsSent.increment();
+		this.bytesSent.add(length);
+		if(this.total != null) this.total.sent(length);
+	}
+
+	public void received(int length) {
+		this.packetsReceived.increment();
+		this.bytesReceived.add(length);
+		if(this.total != null) this.total.received(length);
+	}
+
+	// Photo or firmware bytes acknowledged in order
+	public void delivered(int length) {
+		this.payload.add(length);
+		if(this.total != null) this.total.delivered(length);
+	}
+
+	// Time from first send or arrival of a segment until it was acknowledged in order
+	public void delivery(long micros) {
+		this.delivery.record(micros);
+		if(this.total != null) this.total.delivery(micros);
+	}
+
+	public void retransmit() {
+		this.retransmits.increment();
+		if(this.total != null) this.total.retransmit();
+	}
+
+	public void fastRetransmit() {
+		this.fastRetransmits.increment();
+		if(this.total != null) this.total.fastRetransmit();
+	}
+
+	public void duplicate() {
+		this.duplicates.increment();
+		if(this.total != null) this.total.duplicate();
+	}
+
+	public void timeout() {
+		this.timeouts.increment();
+		if(this.total != null) this.total.timeout();
+	}
+
+	// Congestion window changed to segments, reduced on loss or timeout
+	public void cwnd(int segments, boolean reduced) {
+		this.cwnd.record(segments);
+		if(reduced) this.cwndReductions.increment();
+		if(this.total != null) this.total.cwnd(segments, reduced);
+	}
+
+	public void dropped() {
+		this.dropped.increment();
+		if(this.total != null) this.total.dropped();
+	}
+
+	public void pipelineStall() {
+		this.pipelineStalls.increment();
+		if(this.total != null) this.total.pipelineStall();
+	}
+
+	public void queueDepth(int depth) {
+		this.queueDepth.record(depth);
+		if(this.total != null) this.total.queueDepth(depth);
+	}
+
+	public void rtt(long micros) {
+		this.rtt.record(micros);
+		if(this.total != null) this.total.rtt(micros);
+	}
+
+	// First SYN sent
+	public void started(long now) {
+		if(this.startedAt == 0) this.startedAt = now;
+	}
+
+	// SYN from baryk received
+	public void established(long now) {
+		this.handshake.record((now - this.startedAt) / 1000);
+		if(this.total != null) this.total.handshake.record((now - this.startedAt) / 1000);
+	}
+
+	// Session aborted for reason
+	public void failed(String reason) {
+		this.failure = reason;
+		this.failures.increment();
+		if(this.total != null) this.total.failed(null);
+	}
+
+	// Session done, keep it for the summary
+	public void finished(long now) {
+		if(this.finishedAt != 0) return;
+
+		this.finishedAt = now;
+		this.sessions.increment();
+		if(this.total == null) return;
+
+		this.total.sessions.increment();
+		if(FILE.isEmpty()) return; // Nobody reads the sessions, the total has them
+
+		// Up to KEPT sessions wait for the summary, their buckets would take 40 KB each
+		this.rtt.compact();
+		this.delivery.compact();
+		this.handshake.compact();
+		this.cwnd.compact();
+		this.queueDepth.compact();
+		finished.add(this);
+		if(kept.incrementAndGet() > KEPT && finished.poll() != null) kept.decrementAndGet();
+	}
+
+	public long getSessions() { return this.sessions.sum(); }
+	public long getFailures() { return this.failures.sum(); }
+	public long getPayloadBytes() { return this.payload.sum(); }
+	public long getBytesSent() { return this.bytesSent.sum(); }
+	public long getBytesReceived() { return this.bytesReceived.sum(); }
+	public long getPacketsSent() { return this.packetsSent.sum(); }
+	public long getPacketsReceived() { return this.packetsReceived.sum(); }
+	public long getRetransmits() { return this.retransmits.sum(); }
+	public long getFastRetransmits() { return this.fastRetransmits.sum(); }
+	public long getDuplicates() { return this.duplicates.sum(); }
+	public long getTimeouts() { return this.timeouts.sum(); }
+	public long getDropped() { return this.dropped.sum(); }
+	public long getCwndReductions() { return this.cwndReductions.sum(); }
+	public long getCwndP50() { return this.cwnd.percentile(50); }
+	public long getRttP50Micros() { return this.rtt.percentile(50); }
+	public long getRttP99Micros() { return this.rtt.percentile(99); }
+	public long getDeliveryP50Micros() { return this.delivery.percentile(50); }
+	public long getDeliveryP99Micros() { return this.delivery.percentile(99); }
+	public long getHandshakeP50Micros() { return this.handshake.percentile(50); }
+	public long getHandshakeP99Micros() { return this.handshake.percentile(99); }
+	public long getPipelineStalls() { return this.pipelineStalls.sum(); }
+	public long getQueueDepthP99() { return this.queueDepth.percentile(99); }
+	public long getQueueDepthMax() { return this.queueDepth.max(); }
+
+	public String getSummaryJson() {
+		return summary(false);
+	}
+
+	// Session or total as a JSON object
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{");
+
+		if(this.total != null) {
+			long duration = (this.finishedAt - this.startedAt) / 1000;
+			json.append("\"kind\": ").append(quote(this.kind)).append(", \"host\": ").append(quote(this.host));
+			json.append(", \"conNum\": \"").append(Integer.toHexString(this.conNum)).append('"');
+			if(this.sha256 != null) json.append(", \"sha256\": ").append(quote(this.sha256));
+			if(this.failure != null) json.append(", \"failure\": ").append(quote(this.failure));
+			json.append(", \"durationMicros\": ").append(duration);
+			json.append(", \"goodputBytesPerSecond\": ").append(duration > 0 ? this.payload.sum() * 1000000 / duration : 0);
+			json.append(", ");
+		}
+		else json.append("\"sessions\": ").append(this.sessions.sum()).append(", \"failures\": ").append(this.failures.sum()).append(", ");
+
+		json.append("\"payloadBytes\": ").append(this.payload.sum());
+		json.append(", \"bytesSent\": ").append(this.bytesSent.sum());
+		json.append(", \"bytesReceived\": ").append(this.bytesReceived.sum());
+		json.append(", \"packetsSent\": ").append(this.packetsSent.sum());
+		json.append(", \"packetsReceived\": ").append(this.packetsReceived.sum());
+		json.append(", \"retransmits\": ").append(this.retransmits.sum());
+		json.append(", \"fastRetransmits\": ").append(this.fastRetransmits.sum());
+		json.append(", \"duplicates\": ").append(this.duplicates.sum());
+		json.append(", \"timeouts\": ").append(this.timeouts.sum());
+		json.append(", \"dropped\": ").append(this.dropped.sum());
+		json.append(", \"rttMicros\": ").append(this.rtt.toJson());
+		json.append(", \"deliveryMicros\": ").append(this.delivery.toJson());
+		json.append(", \"handshakeMicros\": ").append(this.handshake.toJson());
+		if(this.cwnd.count() > 0) {
+			json.append(", \"cwndReductions\": ").append(this.cwndReductions.sum());
+			json.append(", \"cwnd\": ").append(this.cwnd.toJson());
+		}
+		if(this.queueDepth.count() > 0) {
+			json.append(", \"pipelineStalls\": ").append(this.pipelineStalls.sum());
+			json.append(", \"queueDepth\": ").append(this.queueDepth.toJson());
+		}
+		return json.append("}").toString();
+	}
+
+	// JSON string of value, null for null
+	static String quote(String value) {
+		if(value == null) return "null";
+
+		StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\') quoted.append('\\').append(c);
+			else if(c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+			else quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+
+	// Total and finished sessions as JSON, optionally forgetting the reported sessions
+	private static String summary(boolean drain) {
+		StringBuilder json = new StringBuilder("{\"total\": ").append(TOTAL.toJson()).append(",\n\"sessions\": [");
+		String separator = "\n";
+
+		for (Iterator<TransferMetrics> it = finished.iterator(); it.hasNext();) {
+			json.append(separator).append(it.next().toJson());
+			separator = ",\n";
+			if(drain) {
+				it.remove();
+				kept.decrementAndGet();
+			}
+		}
+		return json.append("\n]}\n").toString();
+	}
+
+	// Write the end of run summary to FILE
+	public static synchronized void writeSummary() {
+		if(FILE.isEmpty()) return;
+
+		try {
+			FileOutputStream out = new FileOutputStream(FILE, false);
+			out.write(summary(true).getBytes("UTF-8"));
+			out.close();
+		}
+		catch(IOException e) {
+			Log.info("Cannot write metrics to " + FILE + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,32 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// Totals of all transfers in this JVM, registered as robot:type=TransferMetrics
+public interface TransferMetricsMXBean {
+
+	long getSessions();
+	long getFailures();
+	long getPayloadBytes();
+	long getBytesSent();
+	long getBytesReceived();
+	long getPacketsSent();
+	long getPacketsReceived();
+	long getRetransmits();
+	long getFastRetransmits();
+	long getDuplicates();
+	long getTimeouts();
+	long getDropped();
+	long getCwndReductions();
+	long getCwndP50();
+	long getRttP50Micros();
+	long getRttP99Micros();
+	long getDeliveryP50Micros();
+	long getDeliveryP99Micros();
+	long getHandshakeP50Micros();
+	long getHandshakeP99Micros();
+	long getPipelineStalls();
+	long getQueueDepthP99();
+	long getQueueDepthMax();
+	String getSummaryJson();
+}
@@ -0,0 +1,52 @@
+// Author: Štěpán Heller (helleste)
+
+package robot;
+
+// Outcome of a firmware upload done by RobotClient
+public class UploadResult {
+
+	private String host;
+	private int conNum;
+	private int bytes; // Firmware length
+	private boolean confirmed; // Baryk acknowledged the whole image
+	private String checksum; // SHA-256 of the image sent
+	private long millis; // Handshake to the last ack, teardown goes on in the background
+
+	UploadResult(String host, int conNum, int bytes, boolean confirmed, String checksum, long millis) {
+		this.host = host;
+		this.conNum = conNum;
+		this.bytes = bytes;
+		this.confirmed = confirmed;
+		this.checksum = checksum;
+		this.millis = millis;
+	}
+
+	public String getHost() {
+		return this.host;
+	}
+
+	public int getConNum() {
+		return this.conNum;
+	}
+
+	public int getBytes() {
+		return this.bytes;
+	}
+
+	public boolean isConfirmed() {
+		return this.confirmed;
+	}
+
+	public String getChecksum() {
+		return this.checksum;
+	}
+
+	public long getMillis() {
+		return this.millis;
+	}
+
+	public String toString() {
+		return "UploadResult " + this.host + " " + Integer.toHexString(this.conNum) + " " + this.bytes + " bytes "
+				+ (this.confirmed ? "confirmed" : "not confirmed") + " in " + this.millis + " ms";
+	}
+}